@@ -0,0 +1,120 @@
+package advanced_features.part7_annotations;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+//compile time half of the command registry: collects @Command/@Commands types into META-INF/commands.index
+//one line per command: binary class name, value, description, order, optionalDescription - tab separated, escaped
+//has to be compiled before the sources it reads, so it lives in main and the test compile runs it
+@SupportedAnnotationTypes({CommandIndexProcessor.COMMAND, CommandIndexProcessor.COMMANDS})
+public class CommandIndexProcessor extends AbstractProcessor {
+
+    public static final String COMMAND = "advanced_features.part7_annotations.Part7Test.Command";
+    public static final String COMMANDS = "advanced_features.part7_annotations.Part7Test.Commands";
+    public static final String INDEX = "META-INF/commands.index";
+
+    private final Map<String, List<String>> linesByClass = new TreeMap<>();
+    private final List<Element> originating = new ArrayList<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        var elements = processingEnv.getElementUtils();
+        for (var annotation : annotations) {
+            for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element instanceof TypeElement type) {
+                    collect(elements, type);
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !linesByClass.isEmpty()) {
+            write();
+        }
+        return false;
+    }
+
+    //@Inherited: getAllAnnotationMirrors sees the ones declared on superclasses as well
+    private void collect(Elements elements, TypeElement type) {
+        var className = elements.getBinaryName(type).toString();
+        if (linesByClass.containsKey(className)) {
+            return;
+        }
+        var lines = new ArrayList<String>();
+        for (var mirror : elements.getAllAnnotationMirrors(type)) {
+            var name = ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (name.equals(COMMAND)) {
+                lines.add(line(elements, className, mirror));
+            } else if (name.equals(COMMANDS)) {
+                var values = elements.getElementValuesWithDefaults(mirror);
+                for (var entry : values.entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("value")) {
+                        @SuppressWarnings("unchecked")
+                        var repeated = (List<? extends AnnotationValue>) entry.getValue().getValue();
+                        for (var value : repeated) {
+                            lines.add(line(elements, className, (AnnotationMirror) value.getValue()));
+                        }
+                    }
+                }
+            }
+        }
+        linesByClass.put(className, lines);
+        originating.add(type);
+    }
+
+    private static String line(Elements elements, String className, AnnotationMirror command) {
+        var values = new HashMap<String, Object>();
+        elements.getElementValuesWithDefaults(command)
+                .forEach((key, value) -> values.put(key.getSimpleName().toString(), value.getValue()));
+        return String.join("\t",
+                escape(className),
+                escape(String.valueOf(values.get("value"))),
+                escape(String.valueOf(values.get("description"))),
+                String.valueOf(values.get("order")),
+                escape(String.valueOf(values.get("optionalDescription"))));
+    }
+
+    private void write() {
+        try {
+            var resource = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", INDEX, originating.toArray(Element[]::new));
+            try (Writer writer = new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8)) {
+                for (var lines : linesByClass.values()) {
+                    for (var line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write " + INDEX + ": " + e);
+        }
+    }
+
+    public static String escape(String s) {
+        var res = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> res.append("\\\\");
+                case '\t' -> res.append("\\t");
+                case '\n' -> res.append("\\n");
+                case '\r' -> res.append("\\r");
+                default -> res.append(c);
+            }
+        }
+        return res.toString();
+    }
+}
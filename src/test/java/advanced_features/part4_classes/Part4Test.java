@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 class EnclosingWithStaticClass {
 
     private static int counter = 0;
@@ -209,4 +211,32 @@ public class Part4Test {
 
 
     }
+
+    @Test
+    void test_prefix_index() {
+        var list = new ArrayList<MyRecord>();
+        for (var name : List.of("vvv", "aaaa", "ab", "abc", "b", "a", "aaaa")) {
+            list.add(new MyRecord(name));
+        }
+
+        var index = PrefixIndex.of(list, MyRecord::name);
+        System.out.println(index);
+
+        for (var prefix : List.of("", "a", "aa", "ab", "abcd", "b", "c", "vvv")) {
+            var scanned = list.stream().filter(rec -> rec.name().startsWith(prefix)).toList();
+            var found = index.findByPrefix(prefix);
+            assertEquals(scanned.size(), found.size());
+            assertEquals(scanned.size(), index.countByPrefix(prefix));
+            assertEquals(new ArrayList<>(found), found.stream().sorted(Comparator.comparing(MyRecord::name)).toList());
+        }
+
+        //incremental rebuild, the old index stays as it was
+        var bigger = index.withAdded(List.of(new MyRecord("aab"), new MyRecord("zzz")));
+        assertEquals(3, bigger.countByPrefix("aa"));
+        assertEquals(2, index.countByPrefix("aa"));
+
+        var smaller = bigger.withRemoved(rec -> rec.name().startsWith("aa"));
+        assertEquals(0, smaller.countByPrefix("aa"));
+        assertEquals(List.of(new MyRecord("zzz")), smaller.findByPrefix("z"));
+    }
 }
@@ -0,0 +1,134 @@
+package advanced_features.part4_classes;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+//immutable, keys kept sorted in a plain array - prefix query is two binary searches + a sublist view
+public final class PrefixIndex<T> {
+
+    private final Function<? super T, String> keyExtractor;
+    private final String[] keys;
+    private final Object[] values;
+
+    private PrefixIndex(Function<? super T, String> keyExtractor, String[] keys, Object[] values) {
+        this.keyExtractor = keyExtractor;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    public static <T> PrefixIndex<T> of(Collection<? extends T> items, Function<? super T, String> keyExtractor) {
+        var empty = new PrefixIndex<T>(keyExtractor, new String[0], new Object[0]);
+        return empty.withAdded(items);
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    // O(log n + k), equal keys keep insertion order
+    public List<T> findByPrefix(String prefix) {
+        int from = lowerBound(prefix);
+        int to = prefixEnd(prefix, from);
+        @SuppressWarnings("unchecked")
+        List<T> range = (List<T>) Arrays.asList(values).subList(from, to);
+        return Collections.unmodifiableList(range);
+    }
+
+    // O(log n), no need to touch the matches
+    public int countByPrefix(String prefix) {
+        int from = lowerBound(prefix);
+        return prefixEnd(prefix, from) - from;
+    }
+
+    //incremental rebuild: only the added items get sorted, then one linear merge
+    public PrefixIndex<T> withAdded(Collection<? extends T> added) {
+        if (added.isEmpty()) {
+            return this;
+        }
+        record Entry<V>(String key, V value) {}
+
+        var sorted = new ArrayList<Entry<T>>(added.size());
+        for (T item : added) {
+            sorted.add(new Entry<>(Objects.requireNonNull(keyExtractor.apply(item)), item));
+        }
+        sorted.sort(Comparator.comparing(Entry::key)); //stable
+
+        int n = keys.length + sorted.size();
+        var newKeys = new String[n];
+        var newValues = new Object[n];
+        int i = 0, j = 0, k = 0;
+        while (i < keys.length && j < sorted.size()) {
+            var candidate = sorted.get(j);
+            if (keys[i].compareTo(candidate.key()) <= 0) {  //existing first on ties
+                newKeys[k] = keys[i];
+                newValues[k++] = values[i++];
+            } else {
+                newKeys[k] = candidate.key();
+                newValues[k++] = candidate.value();
+                j++;
+            }
+        }
+        while (i < keys.length) {
+            newKeys[k] = keys[i];
+            newValues[k++] = values[i++];
+        }
+        while (j < sorted.size()) {
+            var candidate = sorted.get(j++);
+            newKeys[k] = candidate.key();
+            newValues[k++] = candidate.value();
+        }
+        return new PrefixIndex<>(keyExtractor, newKeys, newValues);
+    }
+
+    //linear, order is already there so no re-sort
+    @SuppressWarnings("unchecked")
+    public PrefixIndex<T> withRemoved(Predicate<? super T> toRemove) {
+        var newKeys = new String[keys.length];
+        var newValues = new Object[values.length];
+        int k = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (!toRemove.test((T) values[i])) {
+                newKeys[k] = keys[i];
+                newValues[k++] = values[i];
+            }
+        }
+        if (k == keys.length) {
+            return this;
+        }
+        return new PrefixIndex<>(keyExtractor, Arrays.copyOf(newKeys, k), Arrays.copyOf(newValues, k));
+    }
+
+    //first key >= prefix
+    private int lowerBound(String prefix) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //keys with the prefix are contiguous, starting at from
+    private int prefixEnd(String prefix, int from) {
+        int lo = from, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefixIndex" + Arrays.toString(keys);
+    }
+}
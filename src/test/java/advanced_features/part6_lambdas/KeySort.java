@@ -0,0 +1,267 @@
+package advanced_features.part6_lambdas;
+
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+//decorate-sort-undecorate: every key is extracted once into an array, the sort itself only compares array slots
+//stable, parallel above PARALLEL_THRESHOLD elements
+public final class KeySort<T> {
+
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    //compares two positions of the list being sorted
+    private interface IndexComparator {
+        int compare(int i, int j);
+    }
+
+    private interface Key<T> {
+        IndexComparator extract(Object[] items);
+    }
+
+    private final List<Key<T>> keys;
+
+    private KeySort(List<Key<T>> keys) {
+        this.keys = keys;
+    }
+
+    public static <T> KeySort<T> comparingInt(ToIntFunction<? super T> keyExtractor) {
+        return new KeySort<T>(List.of()).thenComparingInt(keyExtractor);
+    }
+
+    public static <T> KeySort<T> comparingLong(ToLongFunction<? super T> keyExtractor) {
+        return new KeySort<T>(List.of()).thenComparingLong(keyExtractor);
+    }
+
+    public static <T> KeySort<T> comparingDouble(ToDoubleFunction<? super T> keyExtractor) {
+        return new KeySort<T>(List.of()).thenComparingDouble(keyExtractor);
+    }
+
+    public static <T> KeySort<T> comparingString(Function<? super T, String> keyExtractor) {
+        return new KeySort<T>(List.of()).thenComparingString(keyExtractor);
+    }
+
+    public static <T, U> KeySort<T> comparing(Function<? super T, ? extends U> keyExtractor, Comparator<? super U> comparator) {
+        return new KeySort<T>(List.of()).thenComparing(keyExtractor, comparator);
+    }
+
+    public KeySort<T> thenComparingInt(ToIntFunction<? super T> keyExtractor) {
+        return with(new IntKey<>(keyExtractor));
+    }
+
+    public KeySort<T> thenComparingLong(ToLongFunction<? super T> keyExtractor) {
+        return with(items -> {
+            var k = new long[items.length];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keyExtractor.applyAsLong(item(items, i));
+            }
+            return (i, j) -> Long.compare(k[i], k[j]);
+        });
+    }
+
+    public KeySort<T> thenComparingDouble(ToDoubleFunction<? super T> keyExtractor) {
+        return with(items -> {
+            var k = new double[items.length];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keyExtractor.applyAsDouble(item(items, i));
+            }
+            return (i, j) -> Double.compare(k[i], k[j]);
+        });
+    }
+
+    //natural String order, first 4 chars packed into a long so most comparisons never touch the String
+    public KeySort<T> thenComparingString(Function<? super T, String> keyExtractor) {
+        return with(items -> {
+            var k = new String[items.length];
+            var prefix = new long[items.length];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keyExtractor.apply(item(items, i));
+                prefix[i] = packPrefix(k[i]);
+            }
+            return (i, j) -> {
+                int res = Long.compareUnsigned(prefix[i], prefix[j]);
+                return res != 0 ? res : k[i].compareTo(k[j]);
+            };
+        });
+    }
+
+    public <U> KeySort<T> thenComparing(Function<? super T, ? extends U> keyExtractor, Comparator<? super U> comparator) {
+        return with(items -> {
+            var k = new Object[items.length];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keyExtractor.apply(item(items, i));
+            }
+            @SuppressWarnings("unchecked")
+            var cmp = (Comparator<Object>) comparator;
+            return (i, j) -> cmp.compare(k[i], k[j]);
+        });
+    }
+
+    public void sort(List<T> list) {
+        var items = list.toArray();
+        if (items.length < 2) {
+            return;
+        }
+        var order = keys.size() == 1 && keys.getFirst() instanceof IntKey<T> intKey
+                ? sortPacked(items, intKey)
+                : sortIndices(items);
+
+        var sorted = new Object[items.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = items[order[i]];
+        }
+        var it = list.listIterator();
+        for (var e : sorted) {
+            it.next();
+            @SuppressWarnings("unchecked")
+            var element = (T) e;
+            it.set(element);
+        }
+    }
+
+    private KeySort<T> with(Key<T> key) {
+        var res = new ArrayList<>(keys);
+        res.add(key);
+        return new KeySort<>(List.copyOf(res));
+    }
+
+    //on its own an int key skips the index comparator, see sortPacked
+    private record IntKey<T>(ToIntFunction<? super T> keyExtractor) implements Key<T> {
+        @Override
+        public IndexComparator extract(Object[] items) {
+            var k = new int[items.length];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keyExtractor.applyAsInt(item(items, i));
+            }
+            return (i, j) -> Integer.compare(k[i], k[j]);
+        }
+    }
+
+    //single int key: (key, index) packed into one long, sorted as primitives - stable because index breaks ties
+    private int[] sortPacked(Object[] items, IntKey<T> key) {
+        var packed = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            packed[i] = ((long) key.keyExtractor().applyAsInt(item(items, i)) << 32) | i; //the signed high half sorts as the key
+        }
+        if (packed.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(packed);
+        } else {
+            Arrays.sort(packed);
+        }
+        var order = new int[packed.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (int) packed[i];
+        }
+        return order;
+    }
+
+    private int[] sortIndices(Object[] items) {
+        var comparators = keys.stream().map(k -> k.extract(items)).toArray(IndexComparator[]::new);
+        IndexComparator cmp = comparators.length == 1 ? comparators[0] : (i, j) -> {
+            for (var c : comparators) {
+                int res = c.compare(i, j);
+                if (res != 0) {
+                    return res;
+                }
+            }
+            return 0;
+        };
+        var order = new int[items.length];
+        Arrays.setAll(order, i -> i);
+        var tmp = order.clone();
+        if (order.length >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new MergeSortTask(order, tmp, 0, order.length, cmp));
+        } else {
+            mergeSort(order, tmp, 0, order.length, cmp);
+        }
+        return order;
+    }
+
+    private static final class MergeSortTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int[] a, tmp;
+        private final int from, to;
+        private final transient IndexComparator cmp; //tasks only live inside one sort, never serialized
+
+        MergeSortTask(int[] a, int[] tmp, int from, int to, IndexComparator cmp) {
+            this.a = a;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_THRESHOLD) {
+                mergeSort(a, tmp, from, to, cmp);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new MergeSortTask(a, tmp, from, mid, cmp), new MergeSortTask(a, tmp, mid, to, cmp));
+            merge(a, tmp, from, mid, to, cmp);
+        }
+    }
+
+    //sorts a[from, to) by cmp, tmp is scratch of the same size
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, IndexComparator cmp) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int v = a[i];
+                int j = i - 1;
+                while (j >= from && cmp.compare(a[j], v) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, cmp);
+        mergeSort(a, tmp, mid, to, cmp);
+        merge(a, tmp, from, mid, to, cmp);
+    }
+
+    private static void merge(int[] a, int[] tmp, int from, int mid, int to, IndexComparator cmp) {
+        if (cmp.compare(a[mid - 1], a[mid]) <= 0) {
+            return; //already in order
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = cmp.compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++]; //left wins ties - stable
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    //4 UTF-16 units, zero padded; equal prefixes fall back to compareTo
+    private static long packPrefix(String s) {
+        long res = 0;
+        for (int i = 0; i < 4; i++) {
+            res = (res << 16) | (i < s.length() ? s.charAt(i) : 0);
+        }
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T item(Object[] items, int i) {
+        return (T) items[i];
+    }
+}
@@ -7,9 +7,14 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class Part6Test {
@@ -38,6 +43,61 @@ public class Part6Test {
         names.stream().map(String::toUpperCase).forEach(System.out::println);
     }
 
+    @Test
+    void test_key_sort() {
+        var random = new Random(42);
+        for (int size : new int[]{0, 1, 3, 100, KeySort.PARALLEL_THRESHOLD * 4}) {
+            var names = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                names.add(Integer.toString(random.nextInt(size + 1), 36) + (random.nextBoolean() ? "" : "\u0000x"));
+            }
+
+            var expected = new ArrayList<>(names);
+            expected.sort(Comparator.naturalOrder());
+            var sorted = new ArrayList<>(names);
+            KeySort.comparingString(Function.<String>identity()).sort(sorted);
+            assertEquals(expected, sorted);
+
+            //stable: equal lengths keep their previous (natural) order
+            expected.sort((first, second) -> Integer.compare(first.length(), second.length()));
+            KeySort.<String>comparingInt(String::length).sort(sorted);
+            assertEquals(expected, sorted);
+
+            //multi-key, keys extracted once
+            var byLengthThenReversed = new ArrayList<>(names);
+            byLengthThenReversed.sort(Comparator.comparingInt(String::length).thenComparing(Comparator.<String>reverseOrder()));
+            var multi = new ArrayList<>(names);
+            KeySort.<String>comparingLong(String::length).thenComparing(Function.identity(), Comparator.reverseOrder()).sort(multi);
+            assertEquals(byLengthThenReversed, multi);
+        }
+    }
+
+    record Keyed(int key, int seq) {}
+
+    @Test
+    void test_key_sort_negative_int_keys() {
+        var random = new Random(7);
+        //sequential and parallel packed sort, keys across the whole int range
+        for (int size : new int[]{100, KeySort.PARALLEL_THRESHOLD * 4}) {
+            var items = new ArrayList<Keyed>(size);
+            for (int i = 0; i < size; i++) {
+                int key = switch (random.nextInt(5)) {
+                    case 0 -> Integer.MIN_VALUE;
+                    case 1 -> Integer.MAX_VALUE;
+                    case 2 -> -1 - random.nextInt(3);
+                    case 3 -> random.nextInt(3);
+                    default -> random.nextInt();
+                };
+                items.add(new Keyed(key, i));
+            }
+            //List.sort is stable too, so equal keys have to keep their seq order
+            var expected = new ArrayList<>(items);
+            expected.sort(Comparator.comparingInt(Keyed::key));
+            KeySort.comparingInt(Keyed::key).sort(items);
+            assertEquals(expected, items);
+        }
+    }
+
     //forces one abstract function check in this interface!!!
     @FunctionalInterface
     interface MyFunIn {
@@ -105,6 +165,45 @@ public class Part6Test {
 
     }
 
+    @Test
+    void test_primitive_collectors() {
+        var products = IntStream.range(0, 10_000)
+                .mapToObj(i -> new Product("item" + i, (i * 7919) % 1000))
+                .toList();
+
+        var bigDecimalTotal = products.stream()
+                .map(Product::price)
+                .map(BigDecimal::new)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+
+        //no boxing per element, parallel uses the combiner
+        long total = products.stream().collect(PrimitiveCollectors.summingInt(Product::price));
+        long parallelTotal = products.parallelStream().collect(PrimitiveCollectors.summingInt(Product::price));
+        assertEquals(bigDecimalTotal.longValueExact(), total);
+        assertEquals(total, parallelTotal);
+
+        assertEquals(0, products.parallelStream().collect(PrimitiveCollectors.minInt(Product::price)).getAsInt());
+        assertEquals(999, products.parallelStream().collect(PrimitiveCollectors.maxInt(Product::price)).getAsInt());
+        assertEquals(total / 10_000.0, products.stream().collect(PrimitiveCollectors.averagingInt(Product::price)).getAsDouble());
+        assertEquals(false, List.<Product>of().stream().collect(PrimitiveCollectors.maxLong(Product::price)).isPresent());
+
+        var histogram = products.parallelStream().collect(PrimitiveCollectors.histogram(Product::price, 10, 100));
+        assertArrayEquals(new long[]{100, 900, 9000}, histogram);
+
+        var byExpensive = products.parallelStream()
+                .collect(PrimitiveCollectors.groupingBySum(SomeClass::myStaticMethod_isExpensive, Product::price));
+        var byExpensiveBoxed = products.stream()
+                .collect(Collectors.groupingBy(SomeClass::myStaticMethod_isExpensive, Collectors.summingLong(Product::price)));
+        assertEquals(byExpensiveBoxed, byExpensive);
+
+        assertThrows(ArithmeticException.class,
+                () -> List.of(Long.MAX_VALUE, 1L).stream().collect(PrimitiveCollectors.summingLong(Long::longValue)));
+        assertThrows(ArithmeticException.class,
+                () -> List.of(Long.MAX_VALUE, 1L).stream().collect(PrimitiveCollectors.groupingBySum(_ -> "same", Long::longValue)));
+        assertThrows(ArithmeticException.class,
+                () -> List.of(Long.MAX_VALUE, 1L).parallelStream().collect(PrimitiveCollectors.groupingBySum(_ -> "same", Long::longValue)));
+    }
+
     AtomicInteger ctr = new AtomicInteger();
     private void increment( Product product) {
         ctr.incrementAndGet();
@@ -0,0 +1,162 @@
+package advanced_features.part6_lambdas;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+
+//collectors reading keys straight into primitive accumulators (arrays), boxing only the final result
+public final class PrimitiveCollectors {
+
+    private PrimitiveCollectors() {
+    }
+
+    //int values summed into long - cannot overflow below 2^32 elements, same value as the BigDecimal reduce
+    public static <T> Collector<T, ?, Long> summingInt(ToIntFunction<? super T> mapper) {
+        return Collector.of(
+                () -> new long[1],
+                (acc, t) -> acc[0] += mapper.applyAsInt(t),
+                (left, right) -> {
+                    left[0] += right[0];
+                    return left;
+                },
+                acc -> acc[0]);
+    }
+
+    //exact: throws ArithmeticException where the BigDecimal path would leave the long range
+    public static <T> Collector<T, ?, Long> summingLong(ToLongFunction<? super T> mapper) {
+        return Collector.of(
+                () -> new long[1],
+                (acc, t) -> acc[0] = Math.addExact(acc[0], mapper.applyAsLong(t)),
+                (left, right) -> {
+                    left[0] = Math.addExact(left[0], right[0]);
+                    return left;
+                },
+                acc -> acc[0]);
+    }
+
+    public static <T> Collector<T, ?, OptionalInt> minInt(ToIntFunction<? super T> mapper) {
+        return intExtreme(mapper, true);
+    }
+
+    public static <T> Collector<T, ?, OptionalInt> maxInt(ToIntFunction<? super T> mapper) {
+        return intExtreme(mapper, false);
+    }
+
+    public static <T> Collector<T, ?, OptionalLong> minLong(ToLongFunction<? super T> mapper) {
+        return longExtreme(mapper, true);
+    }
+
+    public static <T> Collector<T, ?, OptionalLong> maxLong(ToLongFunction<? super T> mapper) {
+        return longExtreme(mapper, false);
+    }
+
+    //sum kept exact, only the final division is floating point
+    public static <T> Collector<T, ?, OptionalDouble> averagingInt(ToIntFunction<? super T> mapper) {
+        return Collector.of(
+                () -> new long[2], // sum, count
+                (acc, t) -> {
+                    acc[0] += mapper.applyAsInt(t);
+                    acc[1]++;
+                },
+                (left, right) -> {
+                    left[0] += right[0];
+                    left[1] += right[1];
+                    return left;
+                },
+                acc -> acc[1] == 0 ? OptionalDouble.empty() : OptionalDouble.of((double) acc[0] / acc[1]));
+    }
+
+    //bucket i counts values in [bounds[i-1], bounds[i]), first bucket is below bounds[0], last one is >= last bound
+    public static <T> Collector<T, ?, long[]> histogram(ToIntFunction<? super T> mapper, int... bounds) {
+        var sortedBounds = bounds.clone();
+        Arrays.sort(sortedBounds);
+        return Collector.of(
+                () -> new long[sortedBounds.length + 1],
+                (acc, t) -> acc[bucket(sortedBounds, mapper.applyAsInt(t))]++,
+                (left, right) -> {
+                    for (int i = 0; i < left.length; i++) {
+                        left[i] += right[i];
+                    }
+                    return left;
+                },
+                Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    //one long[1] cell per key, looked up once per element and mutated in place; exact like summingLong
+    public static <T, K> Collector<T, ?, Map<K, Long>> groupingBySum(Function<? super T, ? extends K> classifier,
+                                                                     ToLongFunction<? super T> mapper) {
+        return Collector.<T, Map<K, long[]>, Map<K, Long>>of(
+                HashMap::new,
+                (acc, t) -> {
+                    var cell = acc.computeIfAbsent(classifier.apply(t), _ -> new long[1]);
+                    cell[0] = Math.addExact(cell[0], mapper.applyAsLong(t));
+                },
+                (left, right) -> {
+                    right.forEach((k, cell) -> left.merge(k, cell, (a, b) -> {
+                        a[0] = Math.addExact(a[0], b[0]);
+                        return a;
+                    }));
+                    return left;
+                },
+                acc -> {
+                    var res = new HashMap<K, Long>(acc.size() * 2);
+                    acc.forEach((k, cell) -> res.put(k, cell[0]));
+                    return res;
+                });
+    }
+
+    private static int bucket(int[] bounds, int value) {
+        int pos = Arrays.binarySearch(bounds, value);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    private static <T> Collector<T, ?, OptionalInt> intExtreme(ToIntFunction<? super T> mapper, boolean min) {
+        class Acc {
+            boolean seen;
+            int value;
+
+            void add(int v) {
+                if (!seen || (min ? v < value : v > value)) {
+                    value = v;
+                    seen = true;
+                }
+            }
+        }
+        return Collector.of(
+                Acc::new,
+                (acc, t) -> acc.add(mapper.applyAsInt(t)),
+                (left, right) -> {
+                    if (right.seen) {
+                        left.add(right.value);
+                    }
+                    return left;
+                },
+                acc -> acc.seen ? OptionalInt.of(acc.value) : OptionalInt.empty());
+    }
+
+    private static <T> Collector<T, ?, OptionalLong> longExtreme(ToLongFunction<? super T> mapper, boolean min) {
+        class Acc {
+            boolean seen;
+            long value;
+
+            void add(long v) {
+                if (!seen || (min ? v < value : v > value)) {
+                    value = v;
+                    seen = true;
+                }
+            }
+        }
+        return Collector.of(
+                Acc::new,
+                (acc, t) -> acc.add(mapper.applyAsLong(t)),
+                (left, right) -> {
+                    if (right.seen) {
+                        left.add(right.value);
+                    }
+                    return left;
+                },
+                acc -> acc.seen ? OptionalLong.of(acc.value) : OptionalLong.empty());
+    }
+}
@@ -0,0 +1,273 @@
+package advanced_features.part7_annotations;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+//runtime fallback for CommandIndex: finds @Command types by reading class files, never Class.forName
+//jars and directories are scanned in parallel; only the constant pool is parsed unless it mentions @Command/@Commands
+//jar results are cached under cacheDir, keyed by jar path + size + last modified
+//limit: @Inherited is not followed, a subclass without its own annotation is not reported
+public final class ClassFileScanner {
+
+    private static final String COMMAND = Part7Test.Command.class.descriptorString();
+    private static final String COMMANDS = Part7Test.Commands.class.descriptorString();
+    private static final String DEFAULT_OPTIONAL_DESCRIPTION = defaultOptionalDescription();
+
+    private final Path cacheDir;
+
+    //null cacheDir: no caching
+    public ClassFileScanner(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public List<CommandIndex.Entry> scan(List<Path> roots) {
+        return roots.parallelStream()
+                .flatMap(root -> Files.isDirectory(root) ? scanDirectory(root).stream() : scanJar(root).stream())
+                .sorted(Comparator.comparing(CommandIndex.Entry::className))
+                .toList();
+    }
+
+    private List<CommandIndex.Entry> scanDirectory(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(p -> p.toString().endsWith(".class"))
+                    .toList()
+                    .parallelStream()
+                    .flatMap(p -> parse(readAllBytes(p)).stream())
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot scan " + dir, e);
+        }
+    }
+
+    private List<CommandIndex.Entry> scanJar(Path jar) {
+        try {
+            var key = cacheKey(jar);
+            var cached = readCache(jar, key);
+            if (cached != null) {
+                return cached;
+            }
+            List<CommandIndex.Entry> res;
+            try (var zip = new ZipFile(jar.toFile())) {
+                res = zip.stream()
+                        .filter(e -> e.getName().endsWith(".class") && !e.isDirectory())
+                        .toList()
+                        .parallelStream()  //ZipFile reads are thread safe
+                        .flatMap(e -> {
+                            try (var in = zip.getInputStream(e)) {
+                                return parse(in.readAllBytes()).stream();
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException("cannot read " + e.getName() + " in " + jar, ex);
+                            }
+                        })
+                        .toList();
+            }
+            writeCache(jar, key, res);
+            return res;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot scan " + jar, e);
+        }
+    }
+
+    private static String cacheKey(Path jar) throws IOException {
+        return jar.toAbsolutePath().normalize() + "\t" + Files.size(jar) + "\t" + Files.getLastModifiedTime(jar).toMillis();
+    }
+
+    private Path cacheFile(Path jar) {
+        var name = jar.getFileName() + "-" + Integer.toHexString(jar.toAbsolutePath().normalize().toString().hashCode()) + ".commands";
+        return cacheDir.resolve(name);
+    }
+
+    //first line is the key, the rest is the CommandIndex format
+    private List<CommandIndex.Entry> readCache(Path jar, String key) throws IOException {
+        if (cacheDir == null) {
+            return null;
+        }
+        var file = cacheFile(jar);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!key.equals(reader.readLine())) {
+                return null;
+            }
+            var entries = new ArrayList<CommandIndex.Entry>();
+            CommandIndex.read(reader, entries);
+            return entries;
+        } catch (IOException e) {
+            return null; //broken cache is just a miss
+        }
+    }
+
+    private void writeCache(Path jar, String key, List<CommandIndex.Entry> entries) throws IOException {
+        if (cacheDir == null) {
+            return;
+        }
+        Files.createDirectories(cacheDir);
+        var tmp = Files.createTempFile(cacheDir, "scan", ".tmp");
+        try (var writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(key);
+            writer.write('\n');
+            CommandIndex.write(writer, entries);
+        }
+        Files.move(tmp, cacheFile(jar), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] readAllBytes(Path p) {
+        try {
+            return Files.readAllBytes(p);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot read " + p, e);
+        }
+    }
+
+    //@Command entries of one class file, empty when it has none
+    public static List<CommandIndex.Entry> parse(byte[] classFile) {
+        try {
+            return new Parser(classFile).parse();
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("malformed class file", e);
+        }
+    }
+
+    private static String defaultOptionalDescription() {
+        try {
+            //the annotation type only, not the scanned classes
+            return (String) Part7Test.Command.class.getDeclaredMethod("optionalDescription").getDefaultValue();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Parser {
+        private final DataInputStream in;
+        private Object[] pool; //String for Utf8, Integer for Class (name index), Long/Integer/... for constants
+
+        Parser(byte[] bytes) {
+            in = new DataInputStream(new ByteArrayInputStream(bytes));
+        }
+
+        List<CommandIndex.Entry> parse() throws IOException {
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IOException("not a class file");
+            }
+            in.skipBytes(4); //minor, major
+            if (!readConstantPool()) {
+                return List.of();
+            }
+            in.skipBytes(2); //access flags
+            var className = utf8((Integer) pool[in.readUnsignedShort()]).replace('/', '.');
+            in.skipBytes(2); //super
+            in.skipBytes(2 * in.readUnsignedShort()); //interfaces
+            skipMembers(); //fields
+            skipMembers(); //methods
+            var res = new ArrayList<CommandIndex.Entry>();
+            int attributes = in.readUnsignedShort();
+            for (int i = 0; i < attributes; i++) {
+                var name = utf8(in.readUnsignedShort());
+                int length = in.readInt();
+                if (name.equals("RuntimeVisibleAnnotations")) {
+                    int count = in.readUnsignedShort();
+                    for (int a = 0; a < count; a++) {
+                        readAnnotation(className, res);
+                    }
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+            return res;
+        }
+
+        //false when no utf8 constant names the annotation - the rest of the file is not worth reading
+        private boolean readConstantPool() throws IOException {
+            int count = in.readUnsignedShort();
+            pool = new Object[count];
+            boolean mentioned = false;
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1 -> {
+                        var s = in.readUTF();
+                        pool[i] = s;
+                        mentioned |= s.equals(COMMAND) || s.equals(COMMANDS);
+                    }
+                    case 3 -> pool[i] = in.readInt();
+                    case 4 -> pool[i] = in.readFloat();
+                    case 5 -> pool[i++] = in.readLong();
+                    case 6 -> pool[i++] = in.readDouble();
+                    case 7 -> pool[i] = in.readUnsignedShort();
+                    case 8, 16, 19, 20 -> in.skipBytes(2);
+                    case 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                    case 15 -> in.skipBytes(3);
+                    default -> throw new IOException("unknown constant pool tag " + tag);
+                }
+            }
+            return mentioned;
+        }
+
+        private void skipMembers() throws IOException {
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                in.skipBytes(6);
+                int attributes = in.readUnsignedShort();
+                for (int a = 0; a < attributes; a++) {
+                    in.skipBytes(2);
+                    in.skipBytes(in.readInt());
+                }
+            }
+        }
+
+        private void readAnnotation(String className, List<CommandIndex.Entry> res) throws IOException {
+            var type = utf8(in.readUnsignedShort());
+            int pairs = in.readUnsignedShort();
+            var values = new HashMap<String, Object>();
+            for (int i = 0; i < pairs; i++) {
+                var name = utf8(in.readUnsignedShort());
+                values.put(name, readValue(className, res));
+            }
+            if (type.equals(COMMAND)) {
+                res.add(new CommandIndex.Entry(className,
+                        (String) values.get("value"),
+                        (String) values.get("description"),
+                        (Integer) values.get("order"),
+                        (String) values.getOrDefault("optionalDescription", DEFAULT_OPTIONAL_DESCRIPTION)));
+            }
+        }
+
+        //nested annotations (the @Commands array) are reported straight into res
+        private Object readValue(String className, List<CommandIndex.Entry> res) throws IOException {
+            int tag = in.readUnsignedByte();
+            return switch (tag) {
+                case 's' -> utf8(in.readUnsignedShort());
+                case 'B', 'C', 'I', 'S', 'Z', 'J', 'D', 'F' -> pool[in.readUnsignedShort()];
+                case 'c' -> utf8(in.readUnsignedShort());
+                case 'e' -> {
+                    in.skipBytes(2);
+                    yield utf8(in.readUnsignedShort());
+                }
+                case '@' -> {
+                    readAnnotation(className, res);
+                    yield null;
+                }
+                case '[' -> {
+                    int count = in.readUnsignedShort();
+                    var array = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        array.add(readValue(className, res));
+                    }
+                    yield array;
+                }
+                default -> throw new IOException("unknown element value tag " + (char) tag);
+            };
+        }
+
+        private String utf8(int index) {
+            return (String) pool[index];
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package advanced_features.part7_annotations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//runtime half of CommandIndexProcessor: reads the generated index, no classpath scanning, no class loading
+public final class CommandIndex {
+
+    public record Entry(String className, String value, String description, int order, String optionalDescription) {
+
+        //only when really needed, and without running static initializers
+        public Class<?> load(ClassLoader classLoader) throws ClassNotFoundException {
+            return Class.forName(className, false, classLoader);
+        }
+    }
+
+    private CommandIndex() {
+    }
+
+    public static List<Entry> load() {
+        return load(Thread.currentThread().getContextClassLoader());
+    }
+
+    //every jar / output directory on the classpath can contribute its own index
+    public static List<Entry> load(ClassLoader classLoader) {
+        var entries = new ArrayList<Entry>();
+        try {
+            var resources = classLoader.getResources(CommandIndexProcessor.INDEX);
+            while (resources.hasMoreElements()) {
+                read(resources.nextElement(), entries);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static void read(URL url, List<Entry> entries) throws IOException {
+        try (var reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+            read(reader, entries);
+        }
+    }
+
+    //same line format as CommandIndexProcessor writes
+    static void read(BufferedReader reader, List<Entry> entries) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            var fields = line.split("\t", -1);
+            if (fields.length != 5) {
+                throw new IOException("malformed index line: " + line);
+            }
+            entries.add(new Entry(
+                    unescape(fields[0]),
+                    unescape(fields[1]),
+                    unescape(fields[2]),
+                    Integer.parseInt(fields[3]),
+                    unescape(fields[4])));
+        }
+    }
+
+    static void write(Writer writer, List<Entry> entries) throws IOException {
+        for (var e : entries) {
+            writer.write(String.join("\t",
+                    CommandIndexProcessor.escape(e.className()),
+                    CommandIndexProcessor.escape(e.value()),
+                    CommandIndexProcessor.escape(e.description()),
+                    String.valueOf(e.order()),
+                    CommandIndexProcessor.escape(e.optionalDescription())));
+            writer.write('\n');
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        var res = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = switch (s.charAt(++i)) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    default -> s.charAt(i);
+                };
+            }
+            res.append(c);
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,222 @@
+package advanced_features.part7_annotations;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+//command name -> handler, entries ordered by @Command order()
+//a command class either implements CommandHandler or declares execute(String...) (static or instance, no-arg constructor)
+//the handler is resolved once, on first dispatch, into a LambdaMetafactory class - after that a call is a plain interface call
+public final class CommandRegistry {
+
+    @FunctionalInterface
+    public interface CommandHandler {
+        Object execute(String... args) throws Exception;
+    }
+
+    public static final class Registered {
+        private final CommandIndex.Entry entry;
+        private final ClassLoader classLoader;
+        private Class<?> type;
+        private volatile CommandHandler handler;
+
+        private Registered(CommandIndex.Entry entry, ClassLoader classLoader, Class<?> type) {
+            this.entry = entry;
+            this.classLoader = classLoader;
+            this.type = type;
+        }
+
+        public String name() {
+            return entry.value();
+        }
+
+        public int order() {
+            return entry.order();
+        }
+
+        public CommandIndex.Entry entry() {
+            return entry;
+        }
+
+        public CommandHandler handler() {
+            var res = handler;
+            if (res == null) {
+                synchronized (this) {
+                    res = handler;
+                    if (res == null) {
+                        handler = res = resolve(type());
+                    }
+                }
+            }
+            return res;
+        }
+
+        private synchronized Class<?> type() {
+            if (type == null) {
+                try {
+                    type = entry.load(classLoader);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("command class not found: " + entry.className(), e);
+                }
+            }
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return entry.order() + ":" + entry.value() + " -> " + entry.className();
+        }
+    }
+
+    private final List<Registered> ordered;
+    //open addressing, power of two size, at most half full
+    private final String[] tableKeys;
+    private final Registered[] tableValues;
+
+    private CommandRegistry(List<Registered> registered) {
+        var sorted = new ArrayList<>(registered);
+        sorted.sort(Comparator.comparingInt(Registered::order).thenComparing(Registered::name));
+        this.ordered = List.copyOf(sorted);
+
+        int capacity = Integer.highestOneBit(Math.max(2, sorted.size()) * 2 - 1) << 1;
+        tableKeys = new String[capacity];
+        tableValues = new Registered[capacity];
+        for (var r : sorted) {
+            int slot = slot(r.name());
+            if (tableKeys[slot] != null) {
+                throw new IllegalStateException("duplicate command: " + r.name() + " in " + r.entry().className()
+                        + " and " + tableValues[slot].entry().className());
+            }
+            tableKeys[slot] = r.name();
+            tableValues[slot] = r;
+        }
+    }
+
+    //from the compile time index, classes stay unloaded until dispatched
+    public static CommandRegistry fromIndex(List<CommandIndex.Entry> entries, ClassLoader classLoader) {
+        return new CommandRegistry(entries.stream().map(e -> new Registered(e, classLoader, null)).toList());
+    }
+
+    //from annotations at runtime, @Commands containers expand into one entry per @Command
+    public static CommandRegistry of(Class<?>... types) {
+        var registered = new ArrayList<Registered>();
+        for (var type : types) {
+            for (var command : type.getAnnotationsByType(Part7Test.Command.class)) {
+                var entry = new CommandIndex.Entry(type.getName(), command.value(), command.description(),
+                        command.order(), command.optionalDescription());
+                registered.add(new Registered(entry, type.getClassLoader(), type));
+            }
+        }
+        return new CommandRegistry(registered);
+    }
+
+    //sorted by order(), then name
+    public List<Registered> commands() {
+        return ordered;
+    }
+
+    public Optional<Registered> find(String name) {
+        return Optional.ofNullable(lookup(name));
+    }
+
+    public Object dispatch(String name, String... args) throws Exception {
+        var registered = lookup(name);
+        if (registered == null) {
+            throw new IllegalArgumentException("unknown command: " + name);
+        }
+        return registered.handler().execute(args);
+    }
+
+    private Registered lookup(String name) {
+        int slot = slot(name);
+        return tableKeys[slot] == null ? null : tableValues[slot];
+    }
+
+    //slot holding name, or the empty slot where it would go
+    private int slot(String name) {
+        int mask = tableKeys.length - 1;
+        int h = name.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (tableKeys[i] != null && !tableKeys[i].equals(name)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static CommandHandler resolve(Class<?> type) {
+        try {
+            var lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            if (CommandHandler.class.isAssignableFrom(type)) {
+                return (CommandHandler) newInstance(lookup, type);
+            }
+            var method = type.getDeclaredMethod("execute", String[].class);
+            var target = lookup.unreflect(method);
+            boolean isStatic = Modifier.isStatic(method.getModifiers());
+            var receiver = isStatic ? null : newInstance(lookup, type);
+            if (method.getReturnType() != void.class) {
+                try {
+                    return metafactory(lookup, target, isStatic ? null : type, receiver);
+                } catch (LambdaConversionException e) {
+                    //e.g. lookup without full privileges, falls back to the handle below
+                }
+            }
+            //void becomes null here
+            var bound = (isStatic ? target : target.bindTo(receiver))
+                    .asType(MethodType.methodType(Object.class, String[].class));
+            return args -> invoke(bound, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("not a command handler: " + type.getName()
+                    + ", needs to implement CommandHandler or declare execute(String...)", e);
+        }
+    }
+
+    private static CommandHandler metafactory(MethodHandles.Lookup lookup, MethodHandle target,
+                                              Class<?> receiverType, Object receiver) throws LambdaConversionException {
+        var factoryType = receiverType == null
+                ? MethodType.methodType(CommandHandler.class)
+                : MethodType.methodType(CommandHandler.class, receiverType);
+        var callSite = LambdaMetafactory.metafactory(
+                lookup,
+                "execute",
+                factoryType,
+                MethodType.methodType(Object.class, String[].class),
+                target,
+                MethodType.methodType(Object.class, String[].class));
+        var factory = callSite.getTarget();
+        try {
+            return receiverType == null
+                    ? (CommandHandler) factory.invoke()
+                    : (CommandHandler) factory.invoke(receiver);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e); //the factory only allocates, nothing checked to throw
+        }
+    }
+
+    private static Object newInstance(MethodHandles.Lookup lookup, Class<?> type) throws ReflectiveOperationException {
+        try {
+            return lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            var failure = new InstantiationException("cannot create " + type.getName() + ": " + e);
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
+    private static Object invoke(MethodHandle handle, String[] args) throws Exception {
+        try {
+            return handle.invokeExact(args);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
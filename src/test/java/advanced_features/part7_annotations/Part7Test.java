@@ -1,18 +1,32 @@
 package advanced_features.part7_annotations;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.annotation.*;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class Part7Test {
 
+    @TempDir
+    Path tmp;
+
     @Test
     void test_annotations() {
 
@@ -26,6 +40,114 @@ public class Part7Test {
         }
     }
 
+    @Test
+    void test_annotation_index() throws ClassNotFoundException {
+        //written by CommandIndexProcessor at compile time, nothing scanned or loaded here
+        var entries = CommandIndex.load();
+        entries.forEach(System.out::println);
+
+        var login = entries.stream().filter(e -> e.value().equals("login")).findFirst().orElseThrow();
+        assertEquals(new CommandIndex.Entry(LoginCommand.class.getName(), "login", "describing", 100, "no description"), login);
+        assertEquals(LoginCommand.class, login.load(getClass().getClassLoader()));
+
+        var repeated = entries.stream().filter(e -> e.value().equals("login_repeated")).findFirst().orElseThrow();
+        assertEquals(2, repeated.order());
+    }
+
+    @Test
+    void test_annotation_dispatch() throws Exception {
+        var registry = CommandRegistry.of(GreetCommand.class, SumCommand.class, QuietCommand.class);
+
+        //ordered by order(), @Commands container expanded
+        assertEquals(List.of("greet", "add", "quiet", "sum"),
+                registry.commands().stream().map(CommandRegistry.Registered::name).toList());
+
+        assertEquals("hello a,b", registry.dispatch("greet", "a", "b"));
+        assertEquals(6, registry.dispatch("sum", "1", "2", "3"));
+        assertEquals(6, registry.dispatch("add", "1", "2", "3"));
+        assertNull(registry.dispatch("quiet"));
+        assertTrue(registry.find("login").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> registry.dispatch("login"));
+
+        //resolved once, the same handler afterwards
+        var greet = registry.find("greet").orElseThrow();
+        assertEquals(greet.handler(), greet.handler());
+
+        //the compile time index gives the same entries without loading classes upfront
+        var fromIndex = CommandRegistry.fromIndex(CommandIndex.load(), getClass().getClassLoader());
+        assertEquals("hello x", fromIndex.dispatch("greet", "x"));
+        assertThrows(IllegalStateException.class, () -> fromIndex.dispatch("login")); //inner class, no handler
+
+        assertThrows(IllegalStateException.class, () -> CommandRegistry.of(SumCommand.class, SumCommand.class));
+    }
+
+    @Test
+    void test_annotation_class_file_scan() throws IOException, URISyntaxException {
+        var testClasses = Path.of(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+        var scanner = new ClassFileScanner(null);
+
+        //the same entries as the compile time index, nothing loaded on the way
+        var scanned = scanner.scan(List.of(testClasses)).stream()
+                .filter(e -> e.className().startsWith(Part7Test.class.getName()))
+                .collect(Collectors.toSet());
+        var indexed = CommandIndex.load().stream()
+                .filter(e -> e.className().startsWith(Part7Test.class.getName()))
+                .collect(Collectors.toSet());
+        assertEquals(indexed, scanned);
+        assertFalse(scannedOnlyInitialized);
+
+        //jar + on disk cache
+        var jar = tmp.resolve("commands.jar");
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar));
+             var classes = Files.list(testClasses.resolve("advanced_features/part7_annotations"))) {
+            for (var file : classes.toList()) {
+                out.putNextEntry(new ZipEntry("advanced_features/part7_annotations/" + file.getFileName()));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        var cacheDir = tmp.resolve("cache");
+        var cached = new ClassFileScanner(cacheDir);
+        var fromJar = cached.scan(List.of(jar));
+        assertEquals(scanned, Set.copyOf(fromJar));
+        try (var cacheFiles = Files.list(cacheDir)) {
+            assertEquals(1, cacheFiles.count());
+        }
+        assertEquals(fromJar, cached.scan(List.of(jar)));
+        assertFalse(scannedOnlyInitialized);
+    }
+
+    static volatile boolean scannedOnlyInitialized = false;
+
+    @Command(value = "scanned_only", description = "static initializer must not run while scanning", order = 1000,
+            optionalDescription = "tab\there")
+    static class ScannedOnlyCommand {
+        static {
+            scannedOnlyInitialized = true;
+        }
+    }
+
+    @Command(value = "greet", description = "static execute", order = 1)
+    static class GreetCommand {
+        static String execute(String... args) {
+            return "hello " + String.join(",", args);
+        }
+    }
+
+    @Command(value = "sum", description = "handler instance", order = 50)
+    @Command(value = "add", description = "handler instance, other name", order = 3)
+    static class SumCommand implements CommandRegistry.CommandHandler {
+        @Override
+        public Object execute(String... args) {
+            return Arrays.stream(args).mapToInt(Integer::parseInt).sum();
+        }
+    }
+
+    @Command(value = "quiet", description = "void instance execute", order = 3)
+    static class QuietCommand {
+        private void execute(String... args) {
+        }
+    }
 
     @Command(value = "login", description = "describing" , order = 100)
     @Command(value = "login_repeated", description = "describing" , order = 2)
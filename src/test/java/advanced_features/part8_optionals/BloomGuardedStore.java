@@ -0,0 +1,156 @@
+package advanced_features.part8_optionals;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+//ProductStore decorator answering "definitely missing" from a Bloom filter, so misses never reach the slow store
+//a false positive only costs the probe it would have cost anyway, there are no false negatives
+//ids have to be add()ed as products are added; rebuild() resizes when the filter got fuller than planned
+final class BloomGuardedStore implements ProductStore {
+
+    record Stats(long lookups, long shortCircuited, long passedThrough, long falsePositives, long insertions, long expectedInsertions) {}
+
+    private final ProductStore store;
+    private final double falsePositiveRate;
+    private volatile Filter filter;
+
+    //adds take this briefly; during a rebuild they are also recorded, to be replayed into the new filter
+    private final Object addLock = new Object();
+    private int[] addedDuringRebuild;
+    private int addedCount;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    BloomGuardedStore(ProductStore store, IntStream ids, int expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1): " + falsePositiveRate);
+        }
+        this.store = store;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filter = new Filter(expectedInsertions, falsePositiveRate);
+        ids.forEach(filter::add);
+    }
+
+    @Override
+    public Product load(int id) {
+        lookups.increment();
+        if (!filter.mightContain(id)) {
+            shortCircuited.increment();
+            return null;
+        }
+        var product = store.load(id);
+        if (product == null) {
+            falsePositives.increment();
+        }
+        return product;
+    }
+
+    //call before (or together with) adding the product to the store, never after - or a lookup could miss it
+    void add(int id) {
+        synchronized (addLock) {
+            filter.add(id);
+            if (addedDuringRebuild != null) {
+                if (addedCount == addedDuringRebuild.length) {
+                    addedDuringRebuild = Arrays.copyOf(addedDuringRebuild, addedCount * 2);
+                }
+                addedDuringRebuild[addedCount++] = id;
+            }
+        }
+    }
+
+    //new filter sized for the given ids, swapped in when complete; add() keeps working meanwhile:
+    //ids added while ids is consumed go to the old filter and are replayed into the new one before it is published
+    synchronized void rebuild(IntStream ids, int expectedInsertions) {
+        synchronized (addLock) {
+            addedDuringRebuild = new int[64];
+            addedCount = 0;
+        }
+        try {
+            var rebuilt = new Filter(expectedInsertions, falsePositiveRate);
+            ids.forEach(rebuilt::add);
+            synchronized (addLock) {
+                for (int i = 0; i < addedCount; i++) {
+                    rebuilt.add(addedDuringRebuild[i]);
+                }
+                filter = rebuilt;
+            }
+        } finally {
+            synchronized (addLock) {
+                addedDuringRebuild = null;
+            }
+        }
+    }
+
+    //the false positive rate only holds up to expectedInsertions; ids added twice count once
+    boolean needsRebuild() {
+        var f = filter;
+        return f.insertions.sum() > f.expectedInsertions;
+    }
+
+    Stats stats() {
+        long all = lookups.sum(), skipped = shortCircuited.sum();
+        var f = filter;
+        return new Stats(all, skipped, all - skipped, falsePositives.sum(), f.insertions.sum(), f.expectedInsertions);
+    }
+
+    private static final class Filter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashes;
+        private final long expectedInsertions;
+        private final LongAdder insertions = new LongAdder();
+
+        //m = -n ln p / (ln 2)^2 bits, k = m / n ln 2 hashes
+        Filter(long expectedInsertions, double falsePositiveRate) {
+            this.expectedInsertions = Math.max(1, expectedInsertions);
+            long m = (long) Math.ceil(-this.expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) / 64));
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = words * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / this.expectedInsertions * Math.log(2)));
+        }
+
+        //counted as an insertion only if it set a bit: a repeated id does not fill the filter any further
+        //(a new id whose bits were all set already is not counted either, the count is a slight underestimate)
+        void add(int id) {
+            long h = mix(id);
+            long h1 = h, h2 = (h >>> 32) | 1;
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                if ((bits.get(word) & mask) == 0 && (bits.getAndAccumulate(word, mask, (a, b) -> a | b) & mask) == 0) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                insertions.increment();
+            }
+        }
+
+        boolean mightContain(int id) {
+            long h = mix(id);
+            long h1 = h, h2 = (h >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //splitmix64 finalizer
+        private static long mix(int id) {
+            long z = id * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
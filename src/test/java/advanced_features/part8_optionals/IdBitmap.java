@@ -0,0 +1,647 @@
+package advanced_features.part8_optionals;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+//immutable compressed int set, Roaring style: ids are split by their high 16 bits into chunks of 65536,
+//each chunk stored as whichever is smallest - sorted array (sparse), 1024-word bitmap (dense) or runs (consecutive ids)
+//the sign bit is flipped on the way in, so iteration is ascending in normal int order, negatives first
+public final class IdBitmap {
+
+    private static final int MAGIC = 0x1DB17A90;
+    private static final int ARRAY_MAX = 4096; //2 bytes each, beyond this a bitmap (8 KiB) is smaller
+    private static final IdBitmap EMPTY = new IdBitmap(new char[0], new Container[0]);
+
+    private final char[] keys;             //high 16 bits, ascending
+    private final Container[] containers;  //low 16 bits of every id under keys[i]
+
+    private IdBitmap(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    public static IdBitmap of(int... ids) {
+        return fromSorted(IntStream.of(ids).sorted().distinct().toArray());
+    }
+
+    public static IdBitmap of(IntStream ids) {
+        return fromSorted(ids.sorted().distinct().toArray());
+    }
+
+    private static IdBitmap fromSorted(int[] ids) {
+        if (ids.length == 0) {
+            return EMPTY;
+        }
+        var keys = new char[ids.length];
+        var containers = new Container[ids.length];
+        int n = 0;
+        int from = 0;
+        while (from < ids.length) {
+            char key = high(ids[from]);
+            int to = from;
+            while (to < ids.length && high(ids[to]) == key) {
+                to++;
+            }
+            var lows = new char[to - from];
+            for (int i = from; i < to; i++) {
+                lows[i - from] = low(ids[i]);
+            }
+            keys[n] = key;
+            containers[n++] = lows.length <= ARRAY_MAX
+                    ? Container.optimize(new ArrayContainer(lows))
+                    : Container.optimize(BitmapContainer.of(lows));
+            from = to;
+        }
+        return new IdBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    public long cardinality() {
+        long res = 0;
+        for (var c : containers) {
+            res += c.cardinality();
+        }
+        return res;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    public boolean contains(int id) {
+        int i = Arrays.binarySearch(keys, high(id));
+        return i >= 0 && containers[i].contains(low(id));
+    }
+
+    public IdBitmap and(IdBitmap other) {
+        var keys = new char[Math.min(this.keys.length, other.keys.length)];
+        var containers = new Container[keys.length];
+        int n = 0, i = 0, j = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                var c = Container.and(this.containers[i], other.containers[j]);
+                if (c != null) {
+                    keys[n] = this.keys[i];
+                    containers[n++] = c;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new IdBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    //containers present on one side only are shared, they are immutable
+    public IdBitmap or(IdBitmap other) {
+        var keys = new char[this.keys.length + other.keys.length];
+        var containers = new Container[keys.length];
+        int n = 0, i = 0, j = 0;
+        while (i < this.keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < this.keys.length && this.keys[i] < other.keys[j])) {
+                keys[n] = this.keys[i];
+                containers[n++] = this.containers[i++];
+            } else if (i == this.keys.length || this.keys[i] > other.keys[j]) {
+                keys[n] = other.keys[j];
+                containers[n++] = other.containers[j++];
+            } else {
+                keys[n] = this.keys[i];
+                containers[n++] = Container.or(this.containers[i++], other.containers[j++]);
+            }
+        }
+        return new IdBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    public IdBitmap andNot(IdBitmap other) {
+        var keys = new char[this.keys.length];
+        var containers = new Container[keys.length];
+        int n = 0, j = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < this.keys[i]) {
+                j++;
+            }
+            var c = j < other.keys.length && other.keys[j] == this.keys[i]
+                    ? Container.andNot(this.containers[i], other.containers[j])
+                    : this.containers[i];
+            if (c != null) {
+                keys[n] = this.keys[i];
+                containers[n++] = c;
+            }
+        }
+        return new IdBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    //ascending
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int index = 0;
+            private PrimitiveIterator.OfInt current = keys.length == 0 ? null : containers[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (current != null && !current.hasNext()) {
+                    current = ++index < keys.length ? containers[index].iterator() : null;
+                }
+                return current != null;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return id(keys[index], current.nextInt());
+            }
+        };
+    }
+
+    public IntStream stream() {
+        int flags = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        return StreamSupport.intStream(Spliterators.spliterator(iterator(), cardinality(), flags), false);
+    }
+
+    public int[] toArray() {
+        return stream().toArray();
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeChar(keys[i]);
+            containers[i].writeTo(out);
+        }
+    }
+
+    public static IdBitmap readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an IdBitmap");
+        }
+        int n = in.readInt();
+        var keys = new char[n];
+        var containers = new Container[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = in.readChar();
+            if (i > 0 && keys[i] <= keys[i - 1]) {
+                throw new IOException("keys out of order");
+            }
+            containers[i] = Container.readFrom(in);
+        }
+        return new IdBitmap(keys, containers);
+    }
+
+    public byte[] toBytes() {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static IdBitmap fromBytes(byte[] bytes) throws IOException {
+        try (var in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return readFrom(in);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IdBitmap other) || other.keys.length != keys.length || !Arrays.equals(keys, other.keys)) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (Container.andNot(containers[i], other.containers[i]) != null
+                    || Container.andNot(other.containers[i], containers[i]) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (var it = iterator(); it.hasNext(); ) {
+            h = 31 * h + it.nextInt();
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("IdBitmap[cardinality=").append(cardinality()).append(", containers=");
+        for (int i = 0; i < keys.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(containers[i].getClass().getSimpleName().replace("Container", ""));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static char high(int id) {
+        return (char) ((id ^ Integer.MIN_VALUE) >>> 16);
+    }
+
+    private static char low(int id) {
+        return (char) id;
+    }
+
+    private static int id(char high, int low) {
+        return ((high << 16) | low) ^ Integer.MIN_VALUE;
+    }
+
+    //one chunk of 65536 values, never empty (empty results are null)
+    private sealed interface Container permits ArrayContainer, BitmapContainer, RunContainer {
+
+        int cardinality();
+
+        boolean contains(char value);
+
+        PrimitiveIterator.OfInt iterator();
+
+        long[] toWords();
+
+        void writeTo(DataOutput out) throws IOException;
+
+        static Container readFrom(DataInput in) throws IOException {
+            int type = in.readByte();
+            return switch (type) {
+                case 0 -> ArrayContainer.readFrom(in);
+                case 1 -> BitmapContainer.readFrom(in);
+                case 2 -> RunContainer.readFrom(in);
+                default -> throw new IOException("unknown container type " + type);
+            };
+        }
+
+        static Container and(Container a, Container b) {
+            if (a instanceof ArrayContainer array) {
+                return array.filter(b, true);
+            }
+            if (b instanceof ArrayContainer array) {
+                return array.filter(a, true);
+            }
+            var words = a.toWords();
+            var other = b.toWords();
+            for (int i = 0; i < words.length; i++) {
+                words[i] &= other[i];
+            }
+            return fromWords(words);
+        }
+
+        static Container or(Container a, Container b) {
+            if (a instanceof ArrayContainer x && b instanceof ArrayContainer y && x.values.length + y.values.length <= ARRAY_MAX) {
+                return x.union(y);
+            }
+            var words = a.toWords();
+            var other = b.toWords();
+            for (int i = 0; i < words.length; i++) {
+                words[i] |= other[i];
+            }
+            return fromWords(words);
+        }
+
+        static Container andNot(Container a, Container b) {
+            if (a instanceof ArrayContainer array) {
+                return array.filter(b, false);
+            }
+            var words = a.toWords();
+            var other = b.toWords();
+            for (int i = 0; i < words.length; i++) {
+                words[i] &= ~other[i];
+            }
+            return fromWords(words);
+        }
+
+        static Container optimize(Container c) {
+            return c instanceof BitmapContainer bitmap ? fromWords(bitmap.words) : fromWords(c.toWords());
+        }
+
+        //smallest of the three encodings, null when nothing is set
+        static Container fromWords(long[] words) {
+            int cardinality = 0, runs = 0;
+            long carry = 0; //top bit of the previous word
+            for (long w : words) {
+                cardinality += Long.bitCount(w);
+                runs += Long.bitCount(w & ~((w << 1) | carry));
+                carry = w >>> 63;
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            int arrayBytes = 2 * cardinality, runBytes = 4 * runs, bitmapBytes = 8 * words.length;
+            if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+                return RunContainer.of(words, runs);
+            }
+            if (arrayBytes <= bitmapBytes) {
+                return ArrayContainer.of(words, cardinality);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+
+    private static final class ArrayContainer implements Container {
+        private final char[] values; //sorted
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        static ArrayContainer of(long[] words, int cardinality) {
+            var values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < words.length; i++) {
+                for (long w = words[i]; w != 0; w &= w - 1) {
+                    values[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(w));
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        public int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, value) >= 0;
+        }
+
+        //keep (or drop) the values other contains
+        Container filter(Container other, boolean keep) {
+            var res = new char[values.length];
+            int n = 0;
+            for (char v : values) {
+                if (other.contains(v) == keep) {
+                    res[n++] = v;
+                }
+            }
+            return n == 0 ? null : new ArrayContainer(n == values.length ? values : Arrays.copyOf(res, n));
+        }
+
+        ArrayContainer union(ArrayContainer other) {
+            var res = new char[values.length + other.values.length];
+            int n = 0, i = 0, j = 0;
+            while (i < values.length && j < other.values.length) {
+                char a = values[i], b = other.values[j];
+                res[n++] = a <= b ? a : b;
+                if (a <= b) {
+                    i++;
+                }
+                if (b <= a) {
+                    j++;
+                }
+            }
+            while (i < values.length) {
+                res[n++] = values[i++];
+            }
+            while (j < other.values.length) {
+                res[n++] = other.values[j++];
+            }
+            return new ArrayContainer(Arrays.copyOf(res, n));
+        }
+
+        @Override
+        public PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < values.length;
+                }
+
+                @Override
+                public int nextInt() {
+                    return values[i++];
+                }
+            };
+        }
+
+        @Override
+        public long[] toWords() {
+            var words = new long[1024];
+            for (char v : values) {
+                words[v >>> 6] |= 1L << v;
+            }
+            return words;
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(0);
+            out.writeChar(values.length);
+            for (char v : values) {
+                out.writeChar(v);
+            }
+        }
+
+        static ArrayContainer readFrom(DataInput in) throws IOException {
+            var values = new char[in.readChar()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readChar();
+            }
+            return new ArrayContainer(values);
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words; //1024, never modified after construction
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer of(char[] values) {
+            var words = new long[1024];
+            for (char v : values) {
+                words[v >>> 6] |= 1L << v;
+            }
+            return new BitmapContainer(words, values.length);
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int index = 0;
+                private long word = words[0];
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0 && index < words.length - 1) {
+                        word = words[++index];
+                    }
+                    return word != 0;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int res = (index << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    return res;
+                }
+            };
+        }
+
+        @Override
+        public long[] toWords() {
+            return words.clone();
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(1);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+
+        static BitmapContainer readFrom(DataInput in) throws IOException {
+            var words = new long[1024];
+            int cardinality = 0;
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+                cardinality += Long.bitCount(words[i]);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+
+    //[starts[i], starts[i] + lengths[i]] inclusive, ascending and non touching
+    private static final class RunContainer implements Container {
+        private final char[] starts;
+        private final char[] lengths;
+        private final int cardinality;
+
+        RunContainer(char[] starts, char[] lengths) {
+            this.starts = starts;
+            this.lengths = lengths;
+            int c = 0;
+            for (char l : lengths) {
+                c += l + 1;
+            }
+            this.cardinality = c;
+        }
+
+        static RunContainer of(long[] words, int runs) {
+            var starts = new char[runs];
+            var lengths = new char[runs];
+            int n = 0, start = -1;
+            for (int v = 0; v <= 65536; v++) {
+                boolean set = v < 65536 && (words[v >>> 6] & (1L << v)) != 0;
+                if (set && start < 0) {
+                    start = v;
+                } else if (!set && start >= 0) {
+                    starts[n] = (char) start;
+                    lengths[n++] = (char) (v - 1 - start);
+                    start = -1;
+                }
+            }
+            return new RunContainer(starts, lengths);
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            int i = Arrays.binarySearch(starts, value);
+            if (i >= 0) {
+                return true;
+            }
+            i = -i - 2; //last run starting below value
+            return i >= 0 && value <= starts[i] + lengths[i];
+        }
+
+        @Override
+        public PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int run = 0;
+                private int next = starts.length == 0 ? 0 : starts[0];
+
+                @Override
+                public boolean hasNext() {
+                    return run < starts.length;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int res = next++;
+                    if (next > starts[run] + lengths[run] && ++run < starts.length) {
+                        next = starts[run];
+                    }
+                    return res;
+                }
+            };
+        }
+
+        @Override
+        public long[] toWords() {
+            var words = new long[1024];
+            for (int r = 0; r < starts.length; r++) {
+                int from = starts[r], to = from + lengths[r] + 1; //exclusive
+                int firstWord = from >>> 6, lastWord = (to - 1) >>> 6;
+                for (int w = firstWord; w <= lastWord; w++) {
+                    long mask = -1L;
+                    if (w == firstWord) {
+                        mask &= -1L << from;
+                    }
+                    if (w == lastWord) {
+                        mask &= -1L >>> (63 - ((to - 1) & 63));
+                    }
+                    words[w] |= mask;
+                }
+            }
+            return words;
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(2);
+            out.writeChar(starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                out.writeChar(starts[i]);
+                out.writeChar(lengths[i]);
+            }
+        }
+
+        static RunContainer readFrom(DataInput in) throws IOException {
+            int runs = in.readChar();
+            var starts = new char[runs];
+            var lengths = new char[runs];
+            for (int i = 0; i < runs; i++) {
+                starts[i] = in.readChar();
+                lengths[i] = in.readChar();
+            }
+            return new RunContainer(starts, lengths);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package advanced_features.part8_optionals;
+
+import java.math.BigInteger;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+//nested loops as a flat, numbered space of tuples: tuple number r can be computed directly (unrank),
+//so a parallel stream splits the rank range in halves - equal work per half, unlike flatMap whose inner streams never split
+//sequential traversal steps tuple to tuple with next(), unrank only happens at split points
+sealed interface IndexSpace {
+
+    long size();
+
+    int dimensions();
+
+    //tuple number rank, written into tuple
+    void unrank(long rank, long[] tuple);
+
+    //tuple -> the one after it
+    void next(long[] tuple);
+
+    //(i, j) with 0 <= j < i < n, i outer: the same pairs as range(1, n).flatMap(i -> range(0, i))
+    static IndexSpace triangular(long n) {
+        return new Triangular(n);
+    }
+
+    //(row, col), row outer
+    static IndexSpace rectangular(long rows, long cols) {
+        return new Rectangular(rows, cols);
+    }
+
+    //c[0] < c[1] < ... < c[k-1] from [0, n), lexicographic
+    static IndexSpace combinations(int n, int k) {
+        return new Combinations(n, k);
+    }
+
+    //a new array per tuple
+    default Stream<long[]> stream() {
+        return StreamSupport.stream(new TupleSpliterator(this, 0, size()), false);
+    }
+
+    //one reused tuple per split, nothing allocated per element
+    default LongStream mapToLong(ToLongFunction<long[]> mapper) {
+        return StreamSupport.longStream(new LongSpliterator(new TupleSpliterator(this, 0, size()), mapper), false);
+    }
+
+    default LongStream column(int index) {
+        return mapToLong(tuple -> tuple[index]);
+    }
+
+    record Triangular(long n) implements IndexSpace {
+        public Triangular {
+            if (n < 0 || n > 4_294_967_295L) {
+                throw new IllegalArgumentException("n out of range: " + n);
+            }
+        }
+
+        @Override
+        public long size() {
+            return n < 2 ? 0 : pairsBelow(n);
+        }
+
+        @Override
+        public int dimensions() {
+            return 2;
+        }
+
+        @Override
+        public void unrank(long rank, long[] tuple) {
+            long i = (long) ((1 + Math.sqrt(1 + 8.0 * rank)) / 2);
+            while (pairsBelow(i) > rank) { //double precision fix-ups
+                i--;
+            }
+            while (pairsBelow(i + 1) <= rank) {
+                i++;
+            }
+            tuple[0] = i;
+            tuple[1] = rank - pairsBelow(i);
+        }
+
+        @Override
+        public void next(long[] tuple) {
+            if (++tuple[1] == tuple[0]) {
+                tuple[0]++;
+                tuple[1] = 0;
+            }
+        }
+
+        //i * (i - 1) / 2 without overflowing the intermediate product
+        private static long pairsBelow(long i) {
+            return i % 2 == 0 ? (i / 2) * (i - 1) : i * ((i - 1) / 2);
+        }
+    }
+
+    record Rectangular(long rows, long cols) implements IndexSpace {
+        public Rectangular {
+            if (rows < 0 || cols < 0 || (cols > 0 && rows > Long.MAX_VALUE / cols)) {
+                throw new IllegalArgumentException("size out of range: " + rows + "x" + cols);
+            }
+        }
+
+        @Override
+        public long size() {
+            return rows * cols;
+        }
+
+        @Override
+        public int dimensions() {
+            return 2;
+        }
+
+        @Override
+        public void unrank(long rank, long[] tuple) {
+            tuple[0] = rank / cols;
+            tuple[1] = rank % cols;
+        }
+
+        @Override
+        public void next(long[] tuple) {
+            if (++tuple[1] == cols) {
+                tuple[0]++;
+                tuple[1] = 0;
+            }
+        }
+    }
+
+    record Combinations(int n, int k) implements IndexSpace {
+        public Combinations {
+            if (k < 1 || n < k) {
+                throw new IllegalArgumentException("need 1 <= k <= n: n=" + n + " k=" + k);
+            }
+            if (binomial(n, k) == Long.MAX_VALUE) {
+                throw new IllegalArgumentException("too many combinations: n=" + n + " k=" + k);
+            }
+        }
+
+        @Override
+        public long size() {
+            return binomial(n, k);
+        }
+
+        @Override
+        public int dimensions() {
+            return k;
+        }
+
+        //combinatorial number system: skip whole blocks of combinations sharing a prefix
+        @Override
+        public void unrank(long rank, long[] tuple) {
+            int x = 0;
+            for (int p = 0; p < k; p++) {
+                long block;
+                while ((block = binomial(n - x - 1, k - p - 1)) <= rank) {
+                    rank -= block;
+                    x++;
+                }
+                tuple[p] = x++;
+            }
+        }
+
+        @Override
+        public void next(long[] tuple) {
+            int p = k - 1;
+            while (p > 0 && tuple[p] == n - k + p) {
+                p--;
+            }
+            tuple[p]++;
+            for (int q = p + 1; q < k; q++) {
+                tuple[q] = tuple[q - 1] + 1;
+            }
+        }
+
+        //saturates at Long.MAX_VALUE
+        static long binomial(int n, int k) {
+            if (k < 0 || k > n) {
+                return 0;
+            }
+            k = Math.min(k, n - k);
+            long res = 1;
+            for (int i = 0; i < k; i++) {
+                try {
+                    res = Math.multiplyExact(res, n - i) / (i + 1);
+                } catch (ArithmeticException e) {
+                    var big = BigInteger.ONE;
+                    for (int j = 0; j < k; j++) {
+                        big = big.multiply(BigInteger.valueOf(n - j)).divide(BigInteger.valueOf(j + 1));
+                    }
+                    return big.bitLength() < 64 ? big.longValue() : Long.MAX_VALUE;
+                }
+            }
+            return res;
+        }
+    }
+
+    //ranks [from, to), tuple unranked lazily on first use so splitting stays cheap
+    final class TupleSpliterator implements Spliterator<long[]> {
+        private final IndexSpace space;
+        private long from;
+        private final long to;
+        private long[] tuple;
+
+        TupleSpliterator(IndexSpace space, long from, long to) {
+            this.space = space;
+            this.from = from;
+            this.to = to;
+        }
+
+        //advances and returns the shared tuple, null when done
+        long[] advance() {
+            if (from >= to) {
+                return null;
+            }
+            if (tuple == null) {
+                tuple = new long[space.dimensions()];
+                space.unrank(from, tuple);
+            } else {
+                space.next(tuple);
+            }
+            from++;
+            return tuple;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super long[]> action) {
+            var t = advance();
+            if (t == null) {
+                return false;
+            }
+            action.accept(t.clone());
+            return true;
+        }
+
+        @Override
+        public TupleSpliterator trySplit() {
+            if (tuple != null || to - from < 2) {
+                return null;
+            }
+            long mid = from + (to - from) / 2;
+            var prefix = new TupleSpliterator(space, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    final class LongSpliterator implements Spliterator.OfLong {
+        private final TupleSpliterator tuples;
+        private final ToLongFunction<long[]> mapper;
+
+        LongSpliterator(TupleSpliterator tuples, ToLongFunction<long[]> mapper) {
+            this.tuples = tuples;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            var t = tuples.advance();
+            if (t == null) {
+                return false;
+            }
+            action.accept(mapper.applyAsLong(t));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            long[] t;
+            while ((t = tuples.advance()) != null) {
+                action.accept(mapper.applyAsLong(t));
+            }
+        }
+
+        @Override
+        public LongSpliterator trySplit() {
+            var prefix = tuples.trySplit();
+            return prefix == null ? null : new LongSpliterator(prefix, mapper);
+        }
+
+        @Override
+        public long estimateSize() {
+            return tuples.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return tuples.characteristics();
+        }
+    }
+}
@@ -2,12 +2,24 @@ package advanced_features.part8_optionals;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class Part8Test {
 
@@ -49,19 +61,373 @@ public class Part8Test {
         System.out.println(Arrays.toString(ls.toArray()));
 
     }
-}
 
-record Product(int id, String name) {}
+    @Test
+    void test_allocation_free_lookup() {
+        var fake = new Product(13, "fake product");
+        for (int id : new int[]{1, 2, 9, 11, 12, 13, 14}) {
+            assertEquals(ProductRepo.findById(id).orElse(null), ProductRepo.getOrNull(id));
+            assertEquals(ProductRepo.findById(id).orElse(fake), ProductRepo.getOrDefault(id, fake));
+            assertEquals(ProductRepo.findById(id).isPresent(), ProductRepo.containsId(id));
+        }
+
+        var product = ProductRepo.getOrNull(1);
+        System.out.println(product != null ? product.name() : "notfound");
+
+        var found = new ArrayList<Product>();
+        ProductRepo.forEachFound(new int[]{2, 9, 1, 2, 14}, found::add);
+        assertEquals(List.of(new Product(2, "vvv"), new Product(1, "aaa"), new Product(2, "vvv")), found);
+    }
+
+    @Test
+    void test_id_bitmap() throws IOException {
+        var allIdsAvailable = IdBitmap.of(IntStream.rangeClosed(1, 10));
+        var discountedIds = IdBitmap.of(2, 10);
+        var discountedAvailable = allIdsAvailable.and(discountedIds);
+        System.out.println("available at discount" + Arrays.toString(discountedAvailable.toArray()));
+        assertArrayEquals(new int[]{2, 10}, discountedAvailable.toArray());
+
+        //sparse, dense and run chunks, negatives, against Set<Integer>
+        var random = new Random(11);
+        var left = IntStream.concat(
+                IntStream.concat(random.ints(20_000, -5_000_000, 5_000_000), IntStream.range(100_000, 300_000)),
+                random.ints(40_000, 0, 65_536)).boxed().collect(Collectors.toSet());
+        var right = IntStream.concat(random.ints(50_000, -5_000_000, 5_000_000), IntStream.range(-70_000, 150_000).filter(i -> i % 3 != 0))
+                .boxed().collect(Collectors.toSet());
+        var a = IdBitmap.of(left.stream().mapToInt(Integer::intValue));
+        var b = IdBitmap.of(right.stream().mapToInt(Integer::intValue));
+        System.out.println(a);
+
+        assertEquals(left.size(), a.cardinality());
+        assertArrayEquals(left.stream().mapToInt(Integer::intValue).sorted().toArray(), a.toArray());
+
+        var and = new TreeSet<>(left);
+        and.retainAll(right);
+        var or = new TreeSet<>(left);
+        or.addAll(right);
+        var andNot = new TreeSet<>(left);
+        andNot.removeAll(right);
+        assertArrayEquals(and.stream().mapToInt(Integer::intValue).toArray(), a.and(b).toArray());
+        assertArrayEquals(or.stream().mapToInt(Integer::intValue).toArray(), a.or(b).toArray());
+        assertArrayEquals(andNot.stream().mapToInt(Integer::intValue).toArray(), a.andNot(b).toArray());
+        assertEquals(and.size(), a.and(b).cardinality());
+        assertEquals(a, a.or(a.and(b)));
+
+        for (int i = 0; i < 10_000; i++) {
+            int id = random.nextInt(-6_000_000, 6_000_000);
+            assertEquals(left.contains(id), a.contains(id));
+        }
+
+        var copy = IdBitmap.fromBytes(a.toBytes());
+        assertEquals(a, copy);
+        assertArrayEquals(a.toArray(), copy.toArray());
+        assertEquals(0, IdBitmap.of().cardinality());
+        assertEquals(IdBitmap.of(), a.andNot(a));
+    }
+
+    @Test
+    void test_read_through_cache() throws InterruptedException {
+        var products = IntStream.range(0, 20_000).mapToObj(id -> new Product(id, "p" + id)).toList();
+        var index = new ProductIndex(products);
+        var storeLoads = new AtomicInteger();
+        ProductStore store = id -> {
+            storeLoads.incrementAndGet();
+            return index.get(id);
+        };
+
+        var now = new AtomicLong();
+        var cache = ProductCache.builder(store)
+                .maximumWeight(100)
+                .expireAfterWrite(Duration.ofSeconds(60))
+                .expireAfterAccess(Duration.ofSeconds(10))
+                .ticker(now::get)
+                .build();
+
+        assertEquals(Optional.of(new Product(1, "p1")), cache.findById(1));
+        assertEquals(Optional.of(new Product(1, "p1")), cache.findById(1));
+        assertEquals(Optional.empty(), cache.findById(-1));
+        assertEquals(new ProductCache.Stats(1, 2, 2, 0, 0, 0), cache.stats());
+
+        //expire after access, then after write even when accessed
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        cache.findById(1);
+        assertEquals(1, cache.stats().expirations());
+        for (int i = 0; i < 7; i++) {
+            now.addAndGet(Duration.ofSeconds(9).toNanos());
+            cache.findById(1);
+        }
+        assertEquals(2, cache.stats().expirations());
+
+        //frequently used ids survive a one-off scan
+        for (int round = 0; round < 20; round++) {
+            for (int id = 0; id < 50; id++) {
+                cache.findById(id);
+            }
+        }
+        for (int id = 1000; id < 20_000; id++) {
+            cache.findById(id);
+        }
+        assertTrue(cache.weightedSize() <= 100);
+        var before = cache.stats().hits();
+        for (int id = 0; id < 50; id++) {
+            cache.findById(id);
+        }
+        System.out.println("hot ids still cached after scan: " + (cache.stats().hits() - before) + "/50, " + cache.stats());
+        assertTrue(cache.stats().hits() - before >= 45);
+
+        //weight based
+        var weighted = ProductCache.builder(store).maximumWeight(50).weigher(p -> p.name().length()).build();
+        for (int id = 10_000; id < 10_100; id++) {
+            weighted.findById(id);
+        }
+        assertTrue(weighted.weightedSize() <= 50);
+        assertTrue(weighted.stats().evictions() > 0);
+
+        //concurrent misses for one id: one load
+        var release = new CountDownLatch(1);
+        var slowLoads = new AtomicInteger();
+        var slow = ProductCache.builder(id -> {
+            slowLoads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return index.get(id);
+        }).build();
+        var threads = new ArrayList<Thread>();
+        var results = new ConcurrentLinkedQueue<Product>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(Thread.ofVirtual().start(() -> results.add(slow.getOrNull(5))));
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (var t : threads) {
+            t.join();
+        }
+        assertEquals(1, slowLoads.get());
+        assertEquals(8, results.size());
+        assertTrue(results.stream().allMatch(p -> p.equals(new Product(5, "p5"))));
+
+        //failed loads reach every caller and are not cached
+        var failing = ProductCache.builder(_ -> {
+            throw new IllegalStateException("store down");
+        }).build();
+        assertThrows(IllegalStateException.class, () -> failing.findById(1));
+        assertEquals(1, failing.stats().loadFailures());
+
+        //an Error from the store must not leave the id stuck loading: the next call loads again
+        var errors = new AtomicInteger();
+        var erroring = ProductCache.builder(id -> {
+            if (errors.incrementAndGet() == 1) {
+                throw new AssertionError("store broke");
+            }
+            return index.get(id);
+        }).build();
+        assertThrows(AssertionError.class, () -> erroring.findById(3));
+        assertEquals(Optional.of(new Product(3, "p3")), erroring.findById(3));
+
+        //invalidate during a load: that load's value is not cached, the next read loads the new one
+        var names = new HashMap<Integer, String>(Map.of(7, "old"));
+        var loadStarted = new CountDownLatch(1);
+        var finishLoad = new CountDownLatch(1);
+        var racing = ProductCache.builder(id -> {
+            var name = names.get(id);
+            loadStarted.countDown();
+            try {
+                finishLoad.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Product(id, name);
+        }).build();
+        var stale = new ConcurrentLinkedQueue<Product>();
+        var staleReader = Thread.ofVirtual().start(() -> stale.add(racing.getOrNull(7)));
+        loadStarted.await();
+        names.put(7, "new");
+        racing.invalidate(7);
+        finishLoad.countDown();
+        staleReader.join();
+        assertEquals(List.of(new Product(7, "old")), List.copyOf(stale)); //asked before the invalidate
+        assertEquals(0, racing.size());
+        assertEquals("new", racing.getOrNull(7).name());
 
-class ProductRepo {
+        //hits from many threads take no lock but are all counted
+        var shared = ProductCache.builder(store).maximumWeight(1_000).build();
+        for (int id = 0; id < 100; id++) {
+            shared.findById(id);
+        }
+        var readers = new ArrayList<Thread>();
+        var wrong = new AtomicInteger();
+        for (int t = 0; t < 8; t++) {
+            readers.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    if (shared.getOrNull(i % 100).id() != i % 100) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (var t : readers) {
+            t.join();
+        }
+        assertEquals(0, wrong.get());
+        assertEquals(800_000, shared.stats().hits());
+        assertEquals(100, shared.size());
+    }
 
-    private static final List<Product> products =
-            List.of(
-                    new Product(1, "aaa"),
-                    new Product(2, "vvv")
-            );
+    @Test
+    void test_bloom_guard() throws InterruptedException {
+        var storeProbes = new AtomicInteger();
+        var products = new HashMap<Integer, Product>();
+        ProductStore store = id -> {
+            storeProbes.incrementAndGet();
+            return products.get(id);
+        };
+        for (int id = 1; id <= 10_000; id++) {
+            products.put(id, new Product(id, "p" + id));
+        }
+
+        var guarded = new BloomGuardedStore(store, products.keySet().stream().mapToInt(Integer::intValue), 10_000, 0.01);
 
-    static Optional<Product> findById(int id) {
-        return products.stream().filter(p -> p.id() == id).findFirst();
+        //no false negatives
+        for (int id = 1; id <= 10_000; id++) {
+            assertEquals(products.get(id), guarded.load(id));
+        }
+        //misses like 9, 11, 12... in test_optionals, mostly answered without the store
+        storeProbes.set(0);
+        for (int id = 20_000; id < 120_000; id++) {
+            assertNull(guarded.load(id));
+        }
+        var stats = guarded.stats();
+        System.out.println("bloom: " + stats + " store probes for 100000 misses: " + storeProbes.get());
+        assertTrue(storeProbes.get() < 2_000); //about 1% false positives
+        assertEquals(storeProbes.get(), stats.falsePositives());
+        assertEquals(100_000 - storeProbes.get(), stats.shortCircuited());
+
+        //incremental add, then rebuild once over the planned size
+        for (int id = 200_000; id < 215_000; id++) {
+            guarded.add(id);
+            products.put(id, new Product(id, "p" + id));
+        }
+        assertEquals(new Product(214_999, "p214999"), guarded.load(214_999));
+        assertTrue(guarded.needsRebuild());
+        guarded.rebuild(products.keySet().stream().mapToInt(Integer::intValue), 50_000);
+        assertFalse(guarded.needsRebuild());
+        assertEquals(new Product(200_000, "p200000"), guarded.load(200_000));
+
+        //repeated adds do not count towards the planned size
+        for (int i = 0; i < 100_000; i++) {
+            guarded.add(5);
+        }
+        assertFalse(guarded.needsRebuild());
+
+        //ids added while a rebuild runs end up in the new filter
+        var midway = new CountDownLatch(1);
+        var addsDone = new CountDownLatch(1);
+        var adder = Thread.ofVirtual().start(() -> {
+            try {
+                midway.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int id = 300_000; id < 301_000; id++) {
+                guarded.add(id);
+                products.put(id, new Product(id, "p" + id));
+            }
+            addsDone.countDown();
+        });
+        guarded.rebuild(IntStream.rangeClosed(1, 10_000).peek(id -> {
+            if (id == 5_000) {
+                midway.countDown();
+                try {
+                    addsDone.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }), 50_000);
+        adder.join();
+        for (int id = 300_000; id < 301_000; id++) {
+            assertEquals(new Product(id, "p" + id), guarded.load(id));
+        }
+
+        //in front of the cache
+        var cache = ProductCache.builder(guarded).build();
+        assertEquals(Optional.empty(), cache.findById(-5));
+        assertEquals(Optional.of(new Product(5, "p5")), cache.findById(5));
     }
-}
\ No newline at end of file
+
+    @Test
+    void test_splittable_nested_ranges() {
+        var flatMapped = LongStream.range(1,10).flatMap(i -> LongStream.range(0,i)).toArray();
+        var triangular = IndexSpace.triangular(10);
+        assertArrayEquals(flatMapped, triangular.column(1).toArray());
+        assertArrayEquals(flatMapped, triangular.column(1).parallel().toArray());
+        assertArrayEquals(LongStream.range(1,10).flatMap(i -> LongStream.range(0,i).map(_ -> i)).toArray(), triangular.column(0).toArray());
+
+        //even split by work, not by outer index
+        long n = 150; //11_175 tuples, the big sizes are covered by unrank below
+        var big = IndexSpace.triangular(n);
+        assertEquals(n * (n - 1) / 2, big.size());
+        var spliterator = big.mapToLong(t -> t[0]).spliterator();
+        var prefix = spliterator.trySplit();
+        assertEquals(big.size() / 2, prefix.estimateSize());
+        assertEquals(big.size() - big.size() / 2, spliterator.estimateSize());
+
+        assertEquals(n * (n - 1) / 2, big.mapToLong(t -> t[0]).parallel().count());
+        assertEquals((n - 1) * n * (2 * n - 1) / 6, big.mapToLong(t -> t[0]).parallel().sum()); //i tuples of each i
+        long sequential = big.mapToLong(t -> t[0] ^ t[1]).sum();
+        assertEquals(sequential, big.mapToLong(t -> t[0] ^ t[1]).parallel().sum());
+        assertEquals(sequential, LongStream.range(1, n).flatMap(i -> LongStream.range(0, i).map(j -> i ^ j)).sum());
+
+        var rectangular = IndexSpace.rectangular(7, 13);
+        assertEquals(91, rectangular.stream().parallel().map(t -> t[0] * 13 + t[1]).distinct().count());
+        assertArrayEquals(LongStream.range(0, 91).toArray(), rectangular.mapToLong(t -> t[0] * 13 + t[1]).parallel().toArray());
+
+        var combinations = IndexSpace.combinations(20, 4);
+        assertEquals(4845, combinations.size());
+        var all = combinations.stream().parallel().toList();
+        assertEquals(4845, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            var c = all.get(i);
+            assertTrue(c[0] < c[1] && c[1] < c[2] && c[2] < c[3] && c[3] < 20);
+            if (i > 0) {
+                assertTrue(Arrays.compare(all.get(i - 1), c) < 0);
+            }
+            var unranked = new long[4];
+            combinations.unrank(i, unranked);
+            assertArrayEquals(c, unranked);
+        }
+
+        var huge = IndexSpace.triangular(4_000_000_000L);
+        var last = new long[2];
+        huge.unrank(huge.size() - 1, last);
+        assertArrayEquals(new long[]{3_999_999_999L, 3_999_999_998L}, last);
+    }
+
+    @Test
+    void test_indexed_lookup() {
+        var batch = ProductRepo.findAllById(new int[]{2, 9, 1, 2});
+        assertArrayEquals(new Product[]{new Product(2, "vvv"), null, new Product(1, "aaa"), new Product(2, "vvv")}, batch);
+
+        //bigger table, negative ids and duplicates, batch above the sort threshold
+        var products = new ArrayList<Product>();
+        for (int id = -49_998; id < 50_000; id += 3) {
+            products.add(new Product(id, "p" + id));
+        }
+        products.add(new Product(0, "duplicate"));
+        var index = new ProductIndex(products);
+        assertEquals(products.size() - 1, index.size());
+        assertEquals("p0", index.get(0).name());
+
+        var ids = new Random(7).ints(10_000, -60_000, 60_000).toArray();
+        var found = index.getAll(ids);
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            var expected = products.stream().filter(p -> p.id() == id).findFirst().orElse(null);
+            assertEquals(expected, found[i]);
+            assertEquals(expected, index.get(id));
+        }
+    }
+}
@@ -0,0 +1,3 @@
+package advanced_features.part8_optionals;
+
+record Product(int id, String name) {}
@@ -0,0 +1,542 @@
+package advanced_features.part8_optionals;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+
+//bounded read-through cache in front of a ProductStore
+//eviction is W-TinyLFU: new entries land in a small LRU window, and only move on into the main SLRU (probation/protected)
+//when a frequency sketch says they are used more often than the entry they would push out
+//missing products are not cached; concurrent misses for one id share a single load
+//hits take no lock: the entry is read from a ConcurrentHashMap and the access is queued in a small lossy buffer,
+//replayed into the sketch and the LRU order by whichever thread holds the lock next
+final class ProductCache {
+
+    private static final int READ_STRIPES = 4;
+    private static final int READ_DRAIN_THRESHOLD = ReadBuffer.SIZE / 2;
+    private static final int MAX_SKETCH_SIZE = 1 << 24;
+
+    record Stats(long hits, long misses, long loads, long loadFailures, long evictions, long expirations) {
+        double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 1.0 : (double) hits / requests;
+        }
+    }
+
+    private enum Queue { WINDOW, PROBATION, PROTECTED }
+
+    private static final class Node {
+        final int id;
+        final Product value;
+        final int weight;
+        final long writeTime;
+        volatile long accessTime; //written on hits without the lock
+        Queue queue; //null once removed
+        Node prev, next;
+
+        Node(int id, Product value, int weight, long now) {
+            this.id = id;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    //intrusive doubly linked list, head is the eviction end
+    private static final class Deque {
+        Node head, tail;
+        long weight;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    private final ProductStore store;
+    private final ToIntFunction<Product> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final LongSupplier ticker;
+
+    //read without the lock, changed only holding it
+    private final Map<Integer, Node> data = new ConcurrentHashMap<>();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_STRIPES];
+    private final LongAdder hits = new LongAdder();
+
+    //everything below is guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, CompletableFuture<Product>> loading = new HashMap<>();
+    private final Deque window = new Deque(), probation = new Deque(), protectedQueue = new Deque();
+    private FrequencySketch sketch;
+    private long misses, loads, loadFailures, evictions, expirations;
+
+    private ProductCache(Builder builder) {
+        this.store = builder.store;
+        this.weigher = builder.weigher;
+        this.maximumWeight = builder.maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+        this.expireAfterWriteNanos = builder.expireAfterWrite == null ? Long.MAX_VALUE : builder.expireAfterWrite.toNanos();
+        this.expireAfterAccessNanos = builder.expireAfterAccess == null ? Long.MAX_VALUE : builder.expireAfterAccess.toNanos();
+        this.ticker = builder.ticker;
+        //grown with the number of entries, see ensureSketchCapacity: maximumWeight says little about it with a weigher
+        this.sketch = new FrequencySketch((int) Math.min(maximumWeight, 1024));
+        for (int i = 0; i < READ_STRIPES; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    static Builder builder(ProductStore store) {
+        return new Builder(store);
+    }
+
+    static final class Builder {
+        private final ProductStore store;
+        private long maximumWeight = 10_000;
+        private ToIntFunction<Product> weigher = _ -> 1;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        private LongSupplier ticker = System::nanoTime;
+
+        private Builder(ProductStore store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        //with the default weigher of 1 per product this is the maximum size
+        Builder maximumWeight(long maximumWeight) {
+            if (maximumWeight < 1) {
+                throw new IllegalArgumentException("maximumWeight must be positive: " + maximumWeight);
+            }
+            this.maximumWeight = maximumWeight;
+            return this;
+        }
+
+        Builder weigher(ToIntFunction<Product> weigher) {
+            this.weigher = Objects.requireNonNull(weigher);
+            return this;
+        }
+
+        Builder expireAfterWrite(Duration duration) {
+            this.expireAfterWrite = duration;
+            return this;
+        }
+
+        Builder expireAfterAccess(Duration duration) {
+            this.expireAfterAccess = duration;
+            return this;
+        }
+
+        Builder ticker(LongSupplier nanoTicker) {
+            this.ticker = Objects.requireNonNull(nanoTicker);
+            return this;
+        }
+
+        ProductCache build() {
+            return new ProductCache(this);
+        }
+    }
+
+    Optional<Product> findById(int id) {
+        return Optional.ofNullable(getOrNull(id));
+    }
+
+    Product getOrNull(int id) {
+        var node = data.get(id);
+        if (node != null) {
+            long now = ticker.getAsLong();
+            if (!isExpired(node, now)) {
+                node.accessTime = now;
+                hits.increment();
+                afterRead(node);
+                return node.value;
+            }
+        }
+        return getOrLoad(id);
+    }
+
+    //miss or expired: decided again under the lock, the entry may have changed meanwhile
+    private Product getOrLoad(int id) {
+        CompletableFuture<Product> pending;
+        boolean owner = false;
+        lock.lock();
+        try {
+            drainReads();
+            long now = ticker.getAsLong();
+            sketch.increment(id);
+            var node = data.get(id);
+            if (node != null && isExpired(node, now)) {
+                removeNode(node);
+                expirations++;
+                node = null;
+            }
+            if (node != null) {
+                hits.increment();
+                onAccess(node, now);
+                return node.value;
+            }
+            misses++;
+            pending = loading.get(id);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                loading.put(id, pending);
+                owner = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (owner) {
+            load(id, pending);
+        }
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException r) {
+                throw r;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    //a load already running for id still answers its callers, but its value is not cached: it may predate the change
+    void invalidate(int id) {
+        lock.lock();
+        try {
+            drainReads();
+            var node = data.get(id);
+            if (node != null) {
+                removeNode(node);
+            }
+            loading.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //expired entries are otherwise only dropped when touched
+    void cleanUp() {
+        lock.lock();
+        try {
+            drainReads();
+            long now = ticker.getAsLong();
+            for (var node : data.values().toArray(Node[]::new)) {
+                if (isExpired(node, now)) {
+                    removeNode(node);
+                    expirations++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long weightedSize() {
+        lock.lock();
+        try {
+            return window.weight + probation.weight + protectedQueue.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return data.size();
+    }
+
+    Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(hits.sum(), misses, loads, loadFailures, evictions, expirations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(int id, CompletableFuture<Product> pending) {
+        Product product = null;
+        Throwable failure = null;
+        try {
+            product = store.load(id);
+        } catch (Throwable t) {
+            failure = t;
+        }
+        lock.lock();
+        try {
+            drainReads();
+            //removed in the same step as insert, so no later miss can start a second load;
+            //already gone if invalidate(id) ran during the load
+            boolean current = loading.remove(id, pending);
+            if (failure != null) {
+                loadFailures++;
+            } else {
+                loads++;
+                if (product != null && current) {
+                    insert(id, product, ticker.getAsLong());
+                }
+            }
+        } finally {
+            lock.unlock();
+            //whatever happened above, nobody may be left waiting
+            if (failure != null) {
+                pending.completeExceptionally(failure);
+            } else {
+                pending.complete(product);
+            }
+        }
+    }
+
+    private void afterRead(Node node) {
+        var buffer = readBuffers[(int) Thread.currentThread().threadId() & (READ_STRIPES - 1)];
+        if (buffer.offer(node) >= READ_DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //holding the lock: replays the buffered hits
+    private void drainReads() {
+        for (var buffer : readBuffers) {
+            buffer.drain(node -> {
+                sketch.increment(node.id);
+                if (node.queue != null) { //not evicted since the hit
+                    onAccess(node, node.accessTime);
+                }
+            });
+        }
+    }
+
+    private boolean isExpired(Node node, long now) {
+        return now - node.writeTime >= expireAfterWriteNanos || now - node.accessTime >= expireAfterAccessNanos;
+    }
+
+    private void onAccess(Node node, long now) {
+        node.accessTime = Math.max(node.accessTime, now);
+        switch (node.queue) {
+            case WINDOW -> {
+                window.remove(node);
+                window.addLast(node);
+            }
+            case PROBATION -> {
+                probation.remove(node);
+                node.queue = Queue.PROTECTED;
+                protectedQueue.addLast(node);
+                while (protectedQueue.weight > protectedMaximum && protectedQueue.head != node) {
+                    var demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    demoted.queue = Queue.PROBATION;
+                    probation.addLast(demoted);
+                }
+            }
+            case PROTECTED -> {
+                protectedQueue.remove(node);
+                protectedQueue.addLast(node);
+            }
+        }
+    }
+
+    private void insert(int id, Product product, long now) {
+        int weight = weigher.applyAsInt(product);
+        if (weight > maximumWeight) {
+            return; //would evict everything and still not fit
+        }
+        var old = data.get(id);
+        if (old != null) {
+            removeNode(old);
+        }
+        var node = new Node(id, product, weight, now);
+        node.queue = Queue.WINDOW;
+        data.put(id, node);
+        window.addLast(node);
+        ensureSketchCapacity();
+        evictFromWindow();
+    }
+
+    //frequencies are lost when the sketch grows, as in a fresh cache; it grows with the entries, not with maximumWeight
+    private void ensureSketchCapacity() {
+        if (data.size() > sketch.width() && sketch.width() < MAX_SKETCH_SIZE) {
+            sketch = new FrequencySketch(Math.min(data.size() * 2, MAX_SKETCH_SIZE));
+        }
+    }
+
+    //window overflow goes to probation, but only if it beats the main space victims on frequency
+    private void evictFromWindow() {
+        while (window.weight > windowMaximum && window.head != null) {
+            var candidate = window.head;
+            window.remove(candidate);
+            long mainMaximum = maximumWeight - windowMaximum;
+            boolean admitted = true;
+            while (probation.weight + protectedQueue.weight + candidate.weight > mainMaximum) {
+                var victim = probation.head != null ? probation.head : protectedQueue.head;
+                if (victim == null) {
+                    break;
+                }
+                if (sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                    admitted = false;
+                    break;
+                }
+                evict(victim);
+            }
+            if (admitted && probation.weight + protectedQueue.weight + candidate.weight <= mainMaximum) {
+                candidate.queue = Queue.PROBATION;
+                probation.addLast(candidate);
+            } else {
+                data.remove(candidate.id);
+                candidate.queue = null;
+                evictions++;
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        removeNode(node);
+        evictions++;
+    }
+
+    private void removeNode(Node node) {
+        switch (node.queue) {
+            case WINDOW -> window.remove(node);
+            case PROBATION -> probation.remove(node);
+            case PROTECTED -> protectedQueue.remove(node);
+        }
+        data.remove(node.id);
+        node.queue = null;
+    }
+
+    //lossy ring of hits, written by readers without a lock and drained holding it;
+    //a read that finds the ring full is just not replayed - it still counts as a hit
+    private static final class ReadBuffer {
+        static final int SIZE = 64;
+
+        private final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        private volatile long reads;
+
+        //reads waiting to be drained, SIZE when this one was dropped
+        int offer(Node node) {
+            long w = writes.get();
+            long pending = w - reads;
+            if (pending >= SIZE || !writes.compareAndSet(w, w + 1)) {
+                return SIZE;
+            }
+            slots.setRelease((int) w & (SIZE - 1), node);
+            return (int) pending + 1;
+        }
+
+        //holding the cache lock
+        void drain(Consumer<Node> action) {
+            long r = reads;
+            long w = writes.get();
+            for (; r < w; r++) {
+                var node = slots.getAndSet((int) r & (SIZE - 1), null);
+                if (node == null) {
+                    break; //claimed but not written yet, the next drain gets it
+                }
+                action.accept(node);
+            }
+            reads = r;
+        }
+    }
+
+    //count-min sketch with 4-bit counters, halved every 10 * width increments so old popularity fades
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0x97cb3127L, 0xb7d7b5f1L, 0x9e3779b9L, 0x7f4a7c15L};
+
+        private final long[] table; //16 counters per long
+        private final int width;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedSize) {
+            width = Integer.highestOneBit(Math.max(16, expectedSize) - 1) << 1;
+            table = new long[width / 4];
+            mask = table.length * 16 - 1;
+            sampleSize = 10 * width;
+        }
+
+        int width() {
+            return width;
+        }
+
+        void increment(int id) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int counter = index(id, row);
+                int word = counter >>> 4, shift = (counter & 15) << 2;
+                if (((table[word] >>> shift) & 0xF) < 15) {
+                    table[word] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int id) {
+            int min = 15;
+            for (int row = 0; row < 4; row++) {
+                int counter = index(id, row);
+                min = Math.min(min, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xF));
+            }
+            return min;
+        }
+
+        private int index(int id, int row) {
+            long h = (id + SEEDS[row]) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            return (int) h & mask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package advanced_features.part8_optionals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+//int id -> Product, open addressing with linear probing over primitive keys (no Integer boxes, no entry objects)
+//immutable once built; duplicate ids keep the first product, as findFirst() did
+final class ProductIndex {
+
+    //below this a batch is probed in input order, sorting would cost more than it saves
+    static final int BATCH_SORT_THRESHOLD = 64;
+
+    private final int[] keys;
+    private final Product[] values; //null = empty slot
+    private final int shift;
+    private final int size;
+
+    ProductIndex(Collection<Product> products) {
+        int capacity = Math.max(4, Integer.highestOneBit(Math.max(1, products.size()) * 2 - 1) << 1); //load <= 0.5
+        keys = new int[capacity];
+        values = new Product[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        int count = 0;
+        for (var product : products) {
+            int slot = slot(product.id());
+            if (values[slot] == null) {
+                keys[slot] = product.id();
+                values[slot] = product;
+                count++;
+            }
+        }
+        size = count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    //either the match or null from the empty slot that ended the probe
+    Product get(int id) {
+        return values[slot(id)];
+    }
+
+    //results[i] belongs to ids[i], null when missing
+    //large batches are probed in slot order so neighbouring lookups touch neighbouring memory
+    Product[] getAll(int[] ids) {
+        var res = new Product[ids.length];
+        if (ids.length < BATCH_SORT_THRESHOLD) {
+            for (int i = 0; i < ids.length; i++) {
+                res[i] = values[slot(ids[i])];
+            }
+            return res;
+        }
+        var order = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = ((long) home(ids[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        for (long packed : order) {
+            int i = (int) packed;
+            res[i] = values[slot(ids[i])];
+        }
+        return res;
+    }
+
+    //fibonacci hashing, top bits of the product
+    private int home(int id) {
+        return (id * 0x9E3779B9) >>> shift;
+    }
+
+    //slot holding id, or the empty slot where it would go
+    private int slot(int id) {
+        int mask = keys.length - 1;
+        int i = home(id);
+        while (values[i] != null && keys[i] != id) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,50 @@
+package advanced_features.part8_optionals;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+class ProductRepo {
+
+    private static final List<Product> products =
+            List.of(
+                    new Product(1, "aaa"),
+                    new Product(2, "vvv")
+            );
+
+    private static final ProductIndex index = new ProductIndex(products);
+
+    static Optional<Product> findById(int id) {
+        return Optional.ofNullable(index.get(id));
+    }
+
+    //in input order, null where the id is missing
+    static Product[] findAllById(int[] ids) {
+        return index.getAll(ids);
+    }
+
+    //same answers as findById, without the Optional
+
+    static Product getOrNull(int id) {
+        return index.get(id);
+    }
+
+    static Product getOrDefault(int id, Product defaultProduct) {
+        var product = index.get(id);
+        return product != null ? product : defaultProduct;
+    }
+
+    static boolean containsId(int id) {
+        return index.get(id) != null;
+    }
+
+    //input order, missing ids skipped, nothing allocated per id
+    static void forEachFound(int[] ids, Consumer<? super Product> action) {
+        for (int id : ids) {
+            var product = index.get(id);
+            if (product != null) {
+                action.accept(product);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,9 @@
+package advanced_features.part8_optionals;
+
+//whatever sits behind the repo - a database, a remote service, or an in-memory map in tests
+@FunctionalInterface
+interface ProductStore {
+
+    //null when there is no such product
+    Product load(int id);
+}
@@ -0,0 +1,246 @@
+package advanced_features.part9_trywith;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+//copyNonEmptyLines with reads, filtering and writes overlapping: the reads of the next bufferCount blocks are always
+//in flight on an AsynchronousFileChannel while this thread filters the current block, and filled output buffers are
+//written asynchronously while filtering goes on - so a copy takes about as long as the slower of reading and writing
+//memory is fixed at 2 x bufferCount direct buffers, plus the carry-over of a line that spans blocks
+final class AsyncLineCopy {
+
+    static final int BUFFER_SIZE = 1 << 20;
+    static final int BUFFER_COUNT = 4;
+
+    private AsyncLineCopy() {
+    }
+
+    static void copyNonEmptyLines(String fileIn, String fileOut) throws IOException {
+        copyNonEmptyLines(Path.of(fileIn), Path.of(fileOut), Charset.defaultCharset(), BUFFER_SIZE, BUFFER_COUNT);
+    }
+
+    static void copyNonEmptyLines(Path in, Path out, Charset charset, int bufferSize, int bufferCount) throws IOException {
+        if (bufferSize < 1 || bufferCount < 2) {
+            throw new IllegalArgumentException("need bufferSize >= 1 and bufferCount >= 2: " + bufferSize + ", " + bufferCount);
+        }
+        if (!ByteLineFilter.isAsciiCompatible(charset)) {
+            MappedLineCopy.copyWithReader(in, out, charset);
+            return;
+        }
+        try (
+            AsynchronousFileChannel src = AsynchronousFileChannel.open(in, READ);
+            AsynchronousFileChannel dst = AsynchronousFileChannel.open(out, WRITE, CREATE, TRUNCATE_EXISTING)
+        ) {
+            var writer = new AsyncWriter(dst, bufferSize, bufferCount);
+            var filter = new ByteLineFilter(charset);
+            var carry = new Carry(filter, writer);
+            long size = src.size();
+            long blocks = (size + bufferSize - 1) / bufferSize;
+
+            var reads = new ArrayDeque<Read>(bufferCount);
+            long nextBlock = 0;
+            for (; nextBlock < Math.min(blocks, bufferCount); nextBlock++) {
+                reads.add(Read.start(src, ByteBuffer.allocateDirect(bufferSize), nextBlock * bufferSize));
+            }
+            for (long block = 0; block < blocks; block++) {
+                var read = reads.poll();
+                var buffer = read.await(src, size);
+                carry.process(buffer, buffer.limit(), block == blocks - 1);
+                if (nextBlock < blocks) {
+                    reads.add(Read.start(src, buffer.clear(), nextBlock * bufferSize)); //buffer done, refill it
+                    nextBlock++;
+                }
+            }
+            carry.finish();
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause(); //a failed write surfacing inside a Sink callback
+        }
+    }
+
+    //a read of one block, short reads are completed in await
+    private record Read(ByteBuffer buffer, long position, Future<Integer> pending) {
+        static Read start(AsynchronousFileChannel src, ByteBuffer buffer, long position) {
+            return new Read(buffer, position, src.read(buffer, position));
+        }
+
+        ByteBuffer await(AsynchronousFileChannel src, long size) throws IOException {
+            int read = ParallelLineCopy.await(pending);
+            long wanted = Math.min(buffer.capacity(), size - position);
+            while (read >= 0 && buffer.position() < wanted) {
+                read = ParallelLineCopy.await(src.read(buffer, position + buffer.position()));
+            }
+            return buffer.flip();
+        }
+    }
+
+    //lines that end in the next block: their start is kept here until the rest arrives
+    private static final class Carry {
+        private final ByteLineFilter filter;
+        private final AsyncWriter writer;
+        private ByteBuffer pending = ByteBuffer.allocate(4096);
+
+        Carry(ByteLineFilter filter, AsyncWriter writer) {
+            this.filter = filter;
+            this.writer = writer;
+        }
+
+        void process(ByteBuffer block, int limit, boolean last) throws IOException {
+            int from = 0;
+            if (pending.position() > 0) {
+                //complete the carried line with the head of this block, then filter it on its own;
+                //unless the whole block went in, pending now ends with a complete terminator
+                int end = lineEnd(block, limit);
+                append(block, 0, end);
+                from = end;
+                filterPending(from < limit || last);
+            }
+            if (from < limit) {
+                writer.source(block);
+                int done = filter.filter(block, from, limit, last, writer);
+                append(block, done, limit);
+            }
+        }
+
+        void finish() throws IOException {
+            if (pending.position() > 0) {
+                filterPending(true);
+            }
+        }
+
+        private void filterPending(boolean endOfInput) throws IOException {
+            writer.source(pending);
+            int length = pending.position();
+            int done = filter.filter(pending, 0, length, endOfInput, writer);
+            pending.put(0, pending, done, length - done).position(length - done);
+        }
+
+        //just past the first line terminator, a \r\n counted whole; limit if there is none
+        private static int lineEnd(ByteBuffer block, int limit) {
+            for (int i = 0; i < limit; i++) {
+                byte b = block.get(i);
+                if (b == '\n') {
+                    return i + 1;
+                }
+                if (b == '\r') {
+                    return i + 1 < limit && block.get(i + 1) == '\n' ? i + 2 : i + 1;
+                }
+            }
+            return limit;
+        }
+
+        private void append(ByteBuffer block, int from, int to) {
+            int length = to - from;
+            if (pending.remaining() < length) {
+                var grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(pending.position(), block, from, length);
+            pending.position(pending.position() + length);
+        }
+    }
+
+    //fills output buffers and writes each full one asynchronously; a buffer is reused once its write completed
+    private static final class AsyncWriter implements ByteLineFilter.Sink {
+        private final AsynchronousFileChannel dst;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final ArrayDeque<Write> writes = new ArrayDeque<>();
+        private ByteBuffer source;
+        private ByteBuffer current;
+        private long position;
+
+        private record Write(ByteBuffer buffer, long position, Future<Integer> pending) {}
+
+        AsyncWriter(AsynchronousFileChannel dst, int bufferSize, int bufferCount) {
+            this.dst = dst;
+            for (int i = 0; i < bufferCount; i++) {
+                free.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+        }
+
+        //the buffer the next range() calls refer to; ranges are copied right away, so it may change after filtering
+        void source(ByteBuffer source) {
+            this.source = source;
+        }
+
+        @Override
+        public void range(int from, int to) {
+            while (from < to) {
+                int n = Math.min(to - from, buffer().remaining());
+                current.put(current.position(), source, from, n);
+                current.position(current.position() + n);
+                from += n;
+            }
+        }
+
+        @Override
+        public void bytes(byte[] bytes) {
+            int from = 0;
+            while (from < bytes.length) {
+                int n = Math.min(bytes.length - from, buffer().remaining());
+                current.put(bytes, from, n);
+                from += n;
+            }
+        }
+
+        //the current buffer with room left, handing a full one to the channel first
+        private ByteBuffer buffer() {
+            if (current != null && !current.hasRemaining()) {
+                submit();
+            }
+            if (current == null) {
+                if (free.isEmpty()) {
+                    free.add(complete(writes.poll()));
+                }
+                current = free.poll().clear();
+            }
+            return current;
+        }
+
+        private void submit() {
+            current.flip();
+            writes.add(new Write(current, position, dst.write(current, position)));
+            position += current.limit();
+            current = null;
+        }
+
+        //waits for the write and finishes it if it was short
+        private ByteBuffer complete(Write write) {
+            try {
+                ParallelLineCopy.await(write.pending());
+                while (write.buffer().hasRemaining()) {
+                    ParallelLineCopy.await(dst.write(write.buffer(), write.position() + write.buffer().position()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return write.buffer();
+        }
+
+        void finish() throws IOException {
+            try {
+                if (current != null && current.position() > 0) {
+                    submit();
+                }
+                while (!writes.isEmpty()) {
+                    complete(writes.poll());
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
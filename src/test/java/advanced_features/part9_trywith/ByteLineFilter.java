@@ -0,0 +1,185 @@
+package advanced_features.part9_trywith;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+//the copyNonEmptyLines rules applied to raw bytes: lines end at \n, \r or \r\n like BufferedReader.readLine,
+//whitespace-only lines are dropped like String.isBlank, kept lines end with System.lineSeparator() like BufferedWriter.newLine
+//pure ASCII lines are never decoded; a line with high bytes is decoded once to check isBlank and to catch malformed input,
+//which the reader/writer pair would have replaced - those lines are re-encoded so the output stays byte-identical
+final class ByteLineFilter {
+
+    //where filtered bytes go: verbatim ranges of the scanned buffer, or bytes that are not in it
+    interface Sink {
+        void range(int from, int to);
+
+        void bytes(byte[] bytes);
+
+        //a non-blank line, terminator excluded, about to be kept; false drops it
+        default boolean accept(int from, int to) {
+            return true;
+        }
+
+        //after the last range or bytes of every kept line
+        default void endOfLine() {
+        }
+    }
+
+    private final Charset charset;
+    private final byte[] separator;
+    private final CharsetDecoder strictDecoder;
+    private final CharsetDecoder replacingDecoder;
+    private final CharsetEncoder replacingEncoder;
+
+    ByteLineFilter(Charset charset) {
+        if (!isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("not an ASCII-compatible charset: " + charset);
+        }
+        this.charset = charset;
+        this.separator = System.lineSeparator().getBytes(charset);
+        this.strictDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.replacingDecoder = charset.newDecoder() //what FileReader does
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.replacingEncoder = charset.newEncoder() //what FileWriter does
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    Charset charset() {
+        return charset;
+    }
+
+    //UTF-8, or a single-byte charset that maps 0..127 to itself: \n and \r can never be part of a longer character
+    static boolean isAsciiCompatible(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return true;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+        var ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        var decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //filters the complete lines in [from, to) and returns where the first incomplete one starts
+    //with endOfInput everything is consumed, a last line without terminator included
+    int filter(ByteBuffer in, int from, int to, boolean endOfInput, Sink sink) {
+        int start = from;
+        while (start < to) {
+            int end = start;
+            boolean ascii = true, blank = true;
+            byte b = 0;
+            for (; end < to; end++) {
+                b = in.get(end);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                if (b < 0) {
+                    ascii = false;
+                } else if (blank && !isAsciiWhitespace(b)) {
+                    blank = false;
+                }
+            }
+            int next;
+            if (end == to) {
+                if (!endOfInput) {
+                    return start;
+                }
+                next = end;
+            } else if (b == '\r') {
+                if (end + 1 == to && !endOfInput) {
+                    return start; //a \n may follow in the next buffer
+                }
+                next = end + 1 < to && in.get(end + 1) == '\n' ? end + 2 : end + 1;
+            } else {
+                next = end + 1;
+            }
+            if (ascii) {
+                if (!blank && sink.accept(start, end)) {
+                    keep(start, end, next, in, sink);
+                }
+            } else {
+                decodedLine(in, start, end, next, sink);
+            }
+            start = next;
+        }
+        return start;
+    }
+
+    private void keep(int start, int end, int next, ByteBuffer in, Sink sink) {
+        if (terminatorIsSeparator(in, end, next)) {
+            sink.range(start, next);
+        } else {
+            sink.range(start, end);
+            sink.bytes(separator);
+        }
+        sink.endOfLine();
+    }
+
+    private boolean terminatorIsSeparator(ByteBuffer in, int end, int next) {
+        if (next - end != separator.length) {
+            return false;
+        }
+        for (int i = 0; i < separator.length; i++) {
+            if (in.get(end + i) != separator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //the terminator is decoded along with the line, so a truncated sequence at the end of the line
+    //is reported exactly as the streaming decoder reports it
+    private void decodedLine(ByteBuffer in, int start, int end, int next, Sink sink) {
+        var bytes = in.slice(start, next - start);
+        CharBuffer chars;
+        try {
+            chars = strictDecoder.reset().decode(bytes);
+        } catch (CharacterCodingException e) {
+            try {
+                chars = replacingDecoder.reset().decode(bytes.rewind());
+                var line = chars.subSequence(0, chars.length() - (next - end)).toString();
+                if (!line.isBlank() && sink.accept(start, end)) {
+                    var encoded = replacingEncoder.reset().encode(CharBuffer.wrap(line));
+                    var out = new byte[encoded.remaining()];
+                    encoded.get(out);
+                    sink.bytes(out);
+                    sink.bytes(separator);
+                    sink.endOfLine();
+                }
+                return;
+            } catch (CharacterCodingException unexpected) {
+                throw new IllegalStateException(unexpected); //REPLACE never reports
+            }
+        }
+        if (!chars.subSequence(0, chars.length() - (next - end)).toString().isBlank() && sink.accept(start, end)) {
+            keep(start, end, next, in, sink);
+        }
+    }
+
+    //Character.isWhitespace below 128
+    static boolean isAsciiWhitespace(byte b) {
+        return b == ' ' || (b >= 9 && b <= 13) || (b >= 28 && b <= 31);
+    }
+}
@@ -0,0 +1,354 @@
+package advanced_features.part9_trywith;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+//sorts the lines of a file that does not fit in memory
+//run generation: the reader fills a buffer up to its share of the memory budget, workers sort it and spill it as a run,
+//while the reader already fills the next one; runs go round-robin over the temp directories, gzipped if asked
+//merging: k-way with a heap, equal lines keep input order; more runs than fanIn are merged level by level, groups in
+//parallel as far as their read buffers fit into the memory budget together
+//input that fits into one buffer is sorted in memory and never spilled
+final class ExternalSort {
+
+    private static final int READ_BUFFER = 64 << 10;
+
+    private final long memoryBudget;
+    private final Comparator<? super String> comparator;
+    private final boolean distinct;
+    private final boolean compress;
+    private final List<Path> tempDirectories;
+    private final int threads;
+    private final int fanIn;
+    private final int parallelMerges;
+    private final Charset charset;
+
+    private ExternalSort(Builder builder) {
+        this.memoryBudget = builder.memoryBudget;
+        this.comparator = builder.comparator;
+        this.distinct = builder.distinct;
+        this.compress = builder.compress;
+        this.tempDirectories = List.copyOf(builder.tempDirectories);
+        this.threads = builder.threads;
+        //every merged run holds a read buffer, the output a write buffer
+        this.fanIn = (int) Math.max(2, Math.min(builder.fanIn, memoryBudget / (2L * READ_BUFFER)));
+        this.parallelMerges = (int) Math.max(1, Math.min(threads, memoryBudget / (fanIn * 2L * READ_BUFFER)));
+        this.charset = builder.charset;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static final class Builder {
+        private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        private Comparator<? super String> comparator = Comparator.naturalOrder();
+        private boolean distinct;
+        private boolean compress;
+        private List<Path> tempDirectories = List.of(Path.of(System.getProperty("java.io.tmpdir")));
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int fanIn = 64;
+        private Charset charset = Charset.defaultCharset();
+
+        private Builder() {
+        }
+
+        //heap used for lines in sort buffers, all buffers together
+        Builder memoryBudget(long bytes) {
+            if (bytes < 1) {
+                throw new IllegalArgumentException("memoryBudget must be positive: " + bytes);
+            }
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        Builder comparator(Comparator<? super String> comparator) {
+            this.comparator = Objects.requireNonNull(comparator);
+            return this;
+        }
+
+        //lines the comparator finds equal are written once
+        Builder distinct(boolean distinct) {
+            this.distinct = distinct;
+            return this;
+        }
+
+        //gzip spilled runs: less disk traffic for more CPU
+        Builder compressSpills(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        //ideally one per physical disk, runs are spread over them
+        Builder tempDirectories(Path... directories) {
+            if (directories.length == 0) {
+                throw new IllegalArgumentException("at least one temp directory needed");
+            }
+            this.tempDirectories = List.of(directories);
+            return this;
+        }
+
+        Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be positive: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        Builder fanIn(int fanIn) {
+            if (fanIn < 2) {
+                throw new IllegalArgumentException("fanIn must be at least 2: " + fanIn);
+            }
+            this.fanIn = fanIn;
+            return this;
+        }
+
+        //of input and output; runs are always UTF-8
+        Builder charset(Charset charset) {
+            this.charset = Objects.requireNonNull(charset);
+            return this;
+        }
+
+        ExternalSort build() {
+            return new ExternalSort(this);
+        }
+    }
+
+    //returns the number of lines written
+    long sort(Path in, Path out) throws IOException {
+        var temporary = ConcurrentHashMap.<Path>newKeySet();
+        var tempIndex = new AtomicInteger();
+        //the reader's buffer plus one per worker
+        long runBudget = Math.max(1, memoryBudget / (threads + 1));
+        try (ExecutorService workers = Executors.newFixedThreadPool(threads)) {
+            List<Path> runs = new ArrayList<>();
+            var pending = new ArrayDeque<Future<Path>>();
+            try (var reader = new BufferedReader(new FileReader(in.toFile(), charset), READ_BUFFER)) {
+                var buffer = new ArrayList<String>();
+                long used = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    buffer.add(line);
+                    used += estimateSize(line);
+                    if (used >= runBudget) {
+                        if (pending.size() == threads) {
+                            runs.add(ParallelLineCopy.await(pending.poll()));
+                        }
+                        var full = buffer;
+                        pending.add(workers.submit(() -> spill(full, temporary, tempIndex)));
+                        buffer = new ArrayList<>();
+                        used = 0;
+                    }
+                }
+                if (pending.isEmpty() && runs.isEmpty()) {
+                    buffer.sort(comparator);
+                    try (var writer = new BufferedWriter(new FileWriter(out.toFile(), charset))) {
+                        return writeSorted(buffer, writer);
+                    }
+                }
+                if (!buffer.isEmpty()) {
+                    var last = buffer;
+                    pending.add(workers.submit(() -> spill(last, temporary, tempIndex)));
+                }
+                while (!pending.isEmpty()) {
+                    runs.add(ParallelLineCopy.await(pending.poll()));
+                }
+            } finally {
+                pending.forEach(f -> f.cancel(true));
+            }
+
+            while (runs.size() > fanIn) {
+                var merged = new ArrayList<Path>();
+                var merges = new ArrayDeque<Future<Path>>();
+                try {
+                    for (int i = 0; i < runs.size(); i += fanIn) {
+                        if (merges.size() == parallelMerges) {
+                            merged.add(ParallelLineCopy.await(merges.poll()));
+                        }
+                        var group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                        merges.add(workers.submit(() -> mergeToRun(group, temporary, tempIndex)));
+                    }
+                    while (!merges.isEmpty()) {
+                        merged.add(ParallelLineCopy.await(merges.poll()));
+                    }
+                } finally {
+                    merges.forEach(f -> f.cancel(true));
+                }
+                runs = merged;
+            }
+            try (var writer = new BufferedWriter(new FileWriter(out.toFile(), charset))) {
+                return merge(runs, writer);
+            }
+        } finally {
+            for (var path : temporary) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    path.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    //String object, its byte array and the list slot; Latin-1 strings take half of this, so it errs on the safe side
+    private static long estimateSize(String line) {
+        return 64 + 2L * line.length();
+    }
+
+    private Path spill(List<String> lines, Set<Path> temporary, AtomicInteger tempIndex) throws IOException {
+        lines.sort(comparator);
+        var run = newRun(temporary, tempIndex);
+        try (var writer = runWriter(run)) {
+            writeSorted(lines, writer);
+        }
+        return run;
+    }
+
+    private long writeSorted(List<String> lines, BufferedWriter writer) throws IOException {
+        long written = 0;
+        String previous = null;
+        for (var line : lines) {
+            if (!distinct || previous == null || comparator.compare(previous, line) != 0) {
+                writer.write(line);
+                writer.newLine();
+                written++;
+            }
+            previous = line;
+        }
+        return written;
+    }
+
+    private Path mergeToRun(List<Path> group, Set<Path> temporary, AtomicInteger tempIndex) throws IOException {
+        var run = newRun(temporary, tempIndex);
+        try (var writer = runWriter(run)) {
+            merge(group, writer);
+        }
+        for (var merged : group) {
+            Files.deleteIfExists(merged);
+            temporary.remove(merged);
+        }
+        return run;
+    }
+
+    //a run and the line it currently offers; index breaks ties so equal lines stay in input order
+    private static final class Head {
+        final BufferedReader reader;
+        final int index;
+        String line;
+
+        Head(BufferedReader reader, int index) {
+            this.reader = reader;
+            this.index = index;
+        }
+    }
+
+    private long merge(List<Path> runs, BufferedWriter writer) throws IOException {
+        var heap = new PriorityQueue<Head>(Math.max(1, runs.size()), (a, b) -> {
+            int c = comparator.compare(a.line, b.line);
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        });
+        var readers = new ArrayList<BufferedReader>();
+        Throwable primary = null;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                var head = new Head(runReader(runs.get(i)), i);
+                readers.add(head.reader);
+                head.line = head.reader.readLine();
+                if (head.line != null) {
+                    heap.add(head);
+                }
+            }
+            long written = 0;
+            String previous = null;
+            while (!heap.isEmpty()) {
+                var head = heap.poll();
+                if (!distinct || previous == null || comparator.compare(previous, head.line) != 0) {
+                    writer.write(head.line);
+                    writer.newLine();
+                    written++;
+                }
+                previous = head.line;
+                head.line = head.reader.readLine();
+                if (head.line != null) {
+                    heap.add(head);
+                }
+            }
+            return written;
+        } catch (Throwable t) {
+            primary = t;
+            throw t;
+        } finally {
+            IOException closeFailure = null;
+            for (int i = readers.size() - 1; i >= 0; i--) {
+                try {
+                    readers.get(i).close();
+                } catch (IOException e) {
+                    if (primary != null) {
+                        primary.addSuppressed(e);
+                    } else if (closeFailure == null) {
+                        closeFailure = e;
+                    } else {
+                        closeFailure.addSuppressed(e);
+                    }
+                }
+            }
+            if (closeFailure != null) {
+                throw closeFailure;
+            }
+        }
+    }
+
+    private Path newRun(Set<Path> temporary, AtomicInteger tempIndex) throws IOException {
+        var directory = tempDirectories.get(Math.floorMod(tempIndex.getAndIncrement(), tempDirectories.size()));
+        var run = Files.createTempFile(directory, "sort-run", compress ? ".gz" : ".txt");
+        temporary.add(run);
+        return run;
+    }
+
+    private BufferedWriter runWriter(Path run) throws IOException {
+        var out = Files.newOutputStream(run);
+        try {
+            var stream = compress ? new GZIPOutputStream(out, READ_BUFFER) : out;
+            return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), READ_BUFFER);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    private BufferedReader runReader(Path run) throws IOException {
+        var in = Files.newInputStream(run);
+        try {
+            var stream = compress ? new GZIPInputStream(in, READ_BUFFER) : in;
+            return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), READ_BUFFER);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+}
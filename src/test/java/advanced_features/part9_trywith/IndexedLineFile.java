@@ -0,0 +1,85 @@
+package advanced_features.part9_trywith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+//random access to the lines of a file with a LineIndex next to it: line n or a page of lines is one positional read,
+//wherever it is in the file; lines come back without their terminator
+final class IndexedLineFile implements AutoCloseable {
+
+    private final FileChannel data;
+    private final LineIndex index;
+    private final Charset charset;
+
+    private IndexedLineFile(FileChannel data, LineIndex index, Charset charset) {
+        this.data = data;
+        this.index = index;
+        this.charset = charset;
+    }
+
+    static IndexedLineFile open(Path data, Path index, Charset charset) throws IOException {
+        var lineIndex = LineIndex.open(index);
+        try {
+            var channel = FileChannel.open(data, READ);
+            if (channel.size() != lineIndex.dataLength()) {
+                channel.close();
+                throw new IOException("index does not match " + data + ": " + lineIndex.dataLength() + " bytes indexed, " + channel.size() + " found");
+            }
+            return new IndexedLineFile(channel, lineIndex, charset);
+        } catch (IOException | RuntimeException e) {
+            lineIndex.close();
+            throw e;
+        }
+    }
+
+    long lineCount() {
+        return index.lineCount();
+    }
+
+    String line(long n) throws IOException {
+        return lines(n, n + 1).getFirst();
+    }
+
+    //lines [from, to)
+    List<String> lines(long from, long to) throws IOException {
+        var offsets = index.offsets(from, to);
+        long length = offsets[offsets.length - 1] - offsets[0];
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("range of " + length + " bytes is too large to read at once");
+        }
+        var bytes = ByteBuffer.allocate((int) length);
+        while (bytes.hasRemaining()) {
+            if (data.read(bytes, offsets[0] + bytes.position()) < 0) {
+                throw new IOException("file is shorter than its index");
+            }
+        }
+        var lines = new ArrayList<String>(offsets.length - 1);
+        var array = bytes.array();
+        for (int i = 0; i + 1 < offsets.length; i++) {
+            int start = (int) (offsets[i] - offsets[0]);
+            int end = (int) (offsets[i + 1] - offsets[0]);
+            if (end > start && array[end - 1] == '\n') {
+                end--;
+            }
+            if (end > start && array[end - 1] == '\r') {
+                end--;
+            }
+            lines.add(new String(array, start, end - start, charset));
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (data) {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package advanced_features.part9_trywith;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+//up to capacity() lines packed into one shared char buffer, handed from stage to stage as a unit
+//line(i) is a CharSequence view, not a copy: it is only valid until the batch is changed or refilled,
+//keep toString() of it if a line has to outlive that
+final class LineBatch {
+
+    private char[] chars;
+    private int length;
+    private final int[] starts;
+    private final int[] ends;
+    private final View[] views;
+    private int size;
+    private int lineStart = -1;
+
+    LineBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.chars = new char[Math.max(64, capacity * 64)];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.views = new View[capacity];
+        for (int i = 0; i < capacity; i++) {
+            views[i] = new View(i);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return starts.length;
+    }
+
+    boolean isFull() {
+        return size == starts.length;
+    }
+
+    CharSequence line(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        return views[i];
+    }
+
+    //raw access for sinks that write char ranges
+    char[] chars() {
+        return chars;
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return ends[i];
+    }
+
+    void clear() {
+        size = 0;
+        length = 0;
+        lineStart = -1;
+    }
+
+    //a line copied in, false when the batch is full
+    boolean add(CharSequence line) {
+        if (isFull()) {
+            return false;
+        }
+        beginLine();
+        append(line);
+        endLine();
+        return true;
+    }
+
+    //sources build lines in place: beginLine, append..., endLine
+    void beginLine() {
+        if (isFull()) {
+            throw new IllegalStateException("batch is full");
+        }
+        lineStart = length;
+    }
+
+    void append(char[] src, int from, int to) {
+        ensure(to - from);
+        System.arraycopy(src, from, chars, length, to - from);
+        length += to - from;
+    }
+
+    void endLine() {
+        starts[size] = lineStart;
+        ends[size] = length;
+        size++;
+        lineStart = -1;
+    }
+
+    //drops the lines that do not match, keeping order
+    void retain(Predicate<? super CharSequence> predicate) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(views[i])) {
+                starts[kept] = starts[i];
+                ends[kept] = ends[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    //the new text goes to the end of the buffer; returning the view itself keeps the line as it is
+    void replaceAll(UnaryOperator<CharSequence> operator) {
+        for (int i = 0; i < size; i++) {
+            var replaced = operator.apply(views[i]);
+            if (replaced != views[i]) {
+                int start = length;
+                append(replaced);
+                starts[i] = start;
+                ends[i] = length;
+            }
+        }
+    }
+
+    private void append(CharSequence text) {
+        int n = text.length();
+        ensure(n);
+        if (text instanceof String s) {
+            s.getChars(0, n, chars, length);
+        } else {
+            for (int i = 0; i < n; i++) {
+                chars[length + i] = text.charAt(i); //text may be a view into chars, ensure() already grew it
+            }
+        }
+        length += n;
+    }
+
+    private void ensure(int more) {
+        if (length + more > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + more, chars.length * 2));
+        }
+    }
+
+    //reads through the batch on every call, so it stays right after the buffer grows or retain() moves lines
+    private final class View implements CharSequence {
+        private final int index;
+
+        View(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int length() {
+            return ends[index] - starts[index];
+        }
+
+        @Override
+        public char charAt(int i) {
+            if (i < 0 || i >= length()) {
+                throw new IndexOutOfBoundsException(i);
+            }
+            return chars[starts[index] + i];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            Objects.checkFromToIndex(from, to, length());
+            return new String(chars, starts[index] + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, starts[index], length());
+        }
+    }
+}
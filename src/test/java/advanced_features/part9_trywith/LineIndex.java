@@ -0,0 +1,217 @@
+package advanced_features.part9_trywith;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+//sidecar index of line start offsets, written while a file is produced and memory-mapped to read
+//layout: header | line lengths as varints (1-2 bytes for usual lines) | directory of (first line start, varint position)
+//per block of blockSize lines - so line n costs one directory lookup and at most blockSize varints, never a scan of the file
+//the header is written last: a copy that failed halfway leaves a file open() rejects
+final class LineIndex implements AutoCloseable {
+
+    static final int DEFAULT_BLOCK_SIZE = 64;
+    private static final int MAGIC = 0x4C494458; //"LIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final int blockSize;
+    private final long lineCount;
+    private final long dataLength;
+    private final long directory;
+
+    private LineIndex(Arena arena, MemorySegment segment) throws IOException {
+        this.arena = arena;
+        this.segment = segment;
+        if (segment.byteSize() < HEADER_SIZE || segment.get(INT, 0) != MAGIC) {
+            throw new IOException("not a line index, or an incomplete one");
+        }
+        if (segment.get(INT, 4) != VERSION) {
+            throw new IOException("unsupported line index version " + segment.get(INT, 4));
+        }
+        this.blockSize = segment.get(INT, 8);
+        this.lineCount = segment.get(LONG, 16);
+        this.dataLength = segment.get(LONG, 24);
+        this.directory = segment.get(LONG, 32);
+    }
+
+    //maps the index; close() unmaps it
+    static LineIndex open(Path file) throws IOException {
+        var arena = Arena.ofShared();
+        try (var channel = FileChannel.open(file, READ)) {
+            return new LineIndex(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    long lineCount() {
+        return lineCount;
+    }
+
+    //length of the indexed file
+    long dataLength() {
+        return dataLength;
+    }
+
+    //byte offset of line n in the indexed file
+    long start(long line) {
+        return startAndLength(line)[0];
+    }
+
+    //offset just past line n, its terminator included
+    long end(long line) {
+        var startAndLength = startAndLength(line);
+        return startAndLength[0] + startAndLength[1];
+    }
+
+    //lines [from, to) as offsets: offsets[i] is where line from + i starts, offsets[to - from] where the last one ends
+    long[] offsets(long from, long to) {
+        if (from < 0 || to > lineCount || from > to) {
+            throw new IndexOutOfBoundsException("lines [" + from + ", " + to + ") of " + lineCount);
+        }
+        var offsets = new long[Math.toIntExact(to - from + 1)];
+        if (from == to) {
+            offsets[0] = from == lineCount ? dataLength : start(from);
+            return offsets;
+        }
+        long block = from / blockSize;
+        long position = segment.get(LONG, directory + block * 16 + 8);
+        long offset = segment.get(LONG, directory + block * 16);
+        int i = 0;
+        for (long line = block * blockSize; line < to; line++) {
+            if (line == from) {
+                offsets[i++] = offset;
+            }
+            long length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(ValueLayout.JAVA_BYTE, position++);
+                length |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += length;
+            if (line >= from) {
+                offsets[i++] = offset;
+            }
+        }
+        return offsets;
+    }
+
+    private long[] startAndLength(long line) {
+        var offsets = offsets(line, line + 1);
+        return new long[]{offsets[0], offsets[1] - offsets[0]};
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    static Writer writer(Path file) throws IOException {
+        return new Writer(file, DEFAULT_BLOCK_SIZE);
+    }
+
+    static Writer writer(Path file, int blockSize) throws IOException {
+        return new Writer(file, blockSize);
+    }
+
+    //add() the end offset of every line as it is written, finish() once the indexed file is complete
+    //closing without finish() leaves an index open() rejects
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final int blockSize;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 10);
+        private long position = HEADER_SIZE;
+        private long[] blocks = new long[64]; //pairs of first line start and varint position
+        private long lines;
+        private long lastEnd;
+
+        private Writer(Path file, int blockSize) throws IOException {
+            if (blockSize < 1) {
+                throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            this.channel = FileChannel.open(file, WRITE, CREATE, TRUNCATE_EXISTING);
+        }
+
+        //the next line ends at lineEnd, it starts where the previous one ended
+        void add(long lineEnd) throws IOException {
+            if (lineEnd < lastEnd) {
+                throw new IllegalArgumentException("line end " + lineEnd + " before previous " + lastEnd);
+            }
+            if (lines % blockSize == 0) {
+                int slot = (int) (lines / blockSize) * 2;
+                if (slot + 1 >= blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                blocks[slot] = lastEnd;
+                blocks[slot + 1] = position + buffer.position();
+            }
+            if (buffer.remaining() < 10) {
+                drain();
+            }
+            long length = lineEnd - lastEnd;
+            while ((length & ~0x7FL) != 0) {
+                buffer.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            buffer.put((byte) length);
+            lastEnd = lineEnd;
+            lines++;
+        }
+
+        long lines() {
+            return lines;
+        }
+
+        void finish() throws IOException {
+            long blockCount = (lines + blockSize - 1) / blockSize;
+            long directory = position + buffer.position();
+            for (int i = 0; i < blockCount * 2; i++) {
+                if (buffer.remaining() < 8) {
+                    drain();
+                }
+                buffer.putLong(blocks[i]);
+            }
+            drain();
+            var header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC).putInt(VERSION).putInt(blockSize).putInt(0)
+                    .putLong(lines).putLong(lastEnd).putLong(directory).putLong(blockCount)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package advanced_features.part9_trywith;
+
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
+
+//copyNonEmptyLines generalized: a source, stages applied batch by batch, and one or more sinks
+//  LinePipeline.lines(in, charset).filter(LinePipeline::isNotBlank).toFile(out, charset)
+//resources are only opened when the pipeline runs - source first, then sinks in order - and closed in reverse,
+//like a try-with-resources block: a failure from the body is thrown with close failures added as suppressed
+final class LinePipeline {
+
+    static final int BATCH_SIZE = 1024;
+
+    //opening can fail: the resources opened before it are closed again
+    @FunctionalInterface
+    interface Opener<R extends AutoCloseable> {
+        R open() throws IOException;
+    }
+
+    interface Source extends AutoCloseable {
+        //appends lines until the batch is full, false once nothing was added because the input is exhausted
+        boolean read(LineBatch batch) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    interface Sink extends AutoCloseable {
+        void write(LineBatch batch) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    //works on a whole batch in place
+    @FunctionalInterface
+    interface Stage {
+        void apply(LineBatch batch);
+    }
+
+    private final Opener<? extends Source> source;
+    private final List<Supplier<? extends Stage>> stages; //a supplier, so stateful stages start fresh on every run
+    private final int batchSize;
+
+    private LinePipeline(Opener<? extends Source> source, List<Supplier<? extends Stage>> stages, int batchSize) {
+        this.source = source;
+        this.stages = stages;
+        this.batchSize = batchSize;
+    }
+
+    static LinePipeline from(Opener<? extends Source> source) {
+        return new LinePipeline(Objects.requireNonNull(source), List.of(), BATCH_SIZE);
+    }
+
+    //the lines BufferedReader.readLine would return, decoded like FileReader does
+    static LinePipeline lines(Path file, Charset charset) {
+        return from(() -> new ReaderSource(new FileReader(file.toFile(), charset)));
+    }
+
+    LinePipeline batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        return new LinePipeline(source, stages, batchSize);
+    }
+
+    LinePipeline stage(Stage stage) {
+        Objects.requireNonNull(stage);
+        return stage(() -> stage);
+    }
+
+    //for stages that keep state across batches: one new instance per run
+    LinePipeline stage(Supplier<? extends Stage> stage) {
+        var next = new ArrayList<>(stages);
+        next.add(Objects.requireNonNull(stage));
+        return new LinePipeline(source, List.copyOf(next), batchSize);
+    }
+
+    LinePipeline filter(Predicate<? super CharSequence> predicate) {
+        return stage(batch -> batch.retain(predicate));
+    }
+
+    LinePipeline map(UnaryOperator<CharSequence> operator) {
+        return stage(batch -> batch.replaceAll(operator));
+    }
+
+    //first occurrence wins; keeps every distinct line on the heap as a String
+    LinePipeline distinct() {
+        return stage(Distinct::new);
+    }
+
+    //every line to every sink, returns the number of lines that left the last stage
+    @SafeVarargs
+    final long to(Opener<? extends Sink>... sinks) throws IOException {
+        var openers = new ArrayList<Opener<? extends Sink>>(sinks.length); //element by element, the array never escapes
+        for (var sink : sinks) {
+            openers.add(Objects.requireNonNull(sink));
+        }
+        return run(openers, null);
+    }
+
+    //each line to exactly one sink, picked by router; a negative index drops the line
+    @SafeVarargs
+    final long split(ToIntFunction<? super CharSequence> router, Opener<? extends Sink>... sinks) throws IOException {
+        var openers = new ArrayList<Opener<? extends Sink>>(sinks.length);
+        for (var sink : sinks) {
+            openers.add(Objects.requireNonNull(sink));
+        }
+        return run(openers, Objects.requireNonNull(router));
+    }
+
+    //each line followed by a line separator, encoded like FileWriter does
+    long toFile(Path file, Charset charset) throws IOException {
+        return to(fileSink(file, charset));
+    }
+
+    static Opener<Sink> fileSink(Path file, Charset charset) {
+        return () -> new WriterSink(new BufferedWriter(new FileWriter(file.toFile(), charset)));
+    }
+
+    //String.isBlank without the String
+    static boolean isNotBlank(CharSequence line) {
+        for (int i = 0; i < line.length(); ) {
+            int cp = Character.codePointAt(line, i);
+            if (!Character.isWhitespace(cp)) {
+                return true;
+            }
+            i += Character.charCount(cp);
+        }
+        return false;
+    }
+
+    private long run(List<Opener<? extends Sink>> sinkOpeners, ToIntFunction<? super CharSequence> router) throws IOException {
+        if (sinkOpeners.isEmpty()) {
+            throw new IllegalArgumentException("no sinks");
+        }
+        List<Stage> runStages = stages.stream().<Stage>map(Supplier::get).toList();
+        var batch = new LineBatch(batchSize);
+        long count = 0;
+        //one try-with-resources over a variable number of resources
+        var opened = new ArrayList<AutoCloseable>();
+        Throwable primary = null;
+        try {
+            Source in = source.open();
+            opened.add(in);
+            var sinks = new ArrayList<Sink>();
+            for (var opener : sinkOpeners) {
+                var sink = opener.open();
+                opened.add(sink);
+                sinks.add(sink);
+            }
+            List<LineBatch> routed = router == null ? List.of() : sinks.stream().map(_ -> new LineBatch(batchSize)).toList();
+            while (true) {
+                batch.clear();
+                if (!in.read(batch)) {
+                    break;
+                }
+                for (var stage : runStages) {
+                    stage.apply(batch);
+                }
+                count += batch.size();
+                if (router == null) {
+                    for (var sink : sinks) {
+                        sink.write(batch);
+                    }
+                } else {
+                    route(batch, router, routed, sinks);
+                }
+            }
+        } catch (Throwable t) {
+            primary = t;
+            throw t;
+        } finally {
+            closeAll(opened, primary);
+        }
+        return count;
+    }
+
+    private static void route(LineBatch batch, ToIntFunction<? super CharSequence> router, List<LineBatch> routed, List<Sink> sinks) throws IOException {
+        routed.forEach(LineBatch::clear);
+        for (int i = 0; i < batch.size(); i++) {
+            var line = batch.line(i);
+            int target = router.applyAsInt(line);
+            if (target >= 0) {
+                routed.get(target).add(line); //same capacity as batch, never full
+            }
+        }
+        for (int k = 0; k < sinks.size(); k++) {
+            if (routed.get(k).size() > 0) {
+                sinks.get(k).write(routed.get(k));
+            }
+        }
+    }
+
+    //reverse order; failures are added to primary, or without one the first is thrown with the rest suppressed
+    //an Error from one close() does not keep the others open, it is collected like any other failure
+    private static void closeAll(List<AutoCloseable> opened, Throwable primary) throws IOException {
+        Throwable failure = primary;
+        for (int i = opened.size() - 1; i >= 0; i--) {
+            try {
+                opened.get(i).close();
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (primary == null && failure != null) {
+            if (failure instanceof IOException io) {
+                throw io;
+            }
+            if (failure instanceof RuntimeException r) {
+                throw r;
+            }
+            if (failure instanceof Error e) {
+                throw e;
+            }
+            throw new IOException(failure);
+        }
+    }
+
+    private static final class Distinct implements Stage {
+        private final HashSet<String> seen = new HashSet<>();
+
+        @Override
+        public void apply(LineBatch batch) {
+            batch.retain(line -> seen.add(line.toString()));
+        }
+    }
+
+    //readLine rules (\n, \r, \r\n), chars copied straight from the read buffer into the batch
+    static final class ReaderSource implements Source {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position, limit;
+        private boolean skipLF, inLine, eof;
+
+        ReaderSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean read(LineBatch batch) throws IOException {
+            int before = batch.size();
+            while (!batch.isFull()) {
+                if (position == limit) {
+                    if (eof || !fill()) {
+                        if (inLine) {
+                            batch.endLine();
+                            inLine = false;
+                        }
+                        break;
+                    }
+                }
+                if (skipLF) {
+                    skipLF = false;
+                    if (buffer[position] == '\n') {
+                        position++;
+                        continue;
+                    }
+                }
+                if (!inLine) {
+                    batch.beginLine();
+                    inLine = true;
+                }
+                int end = position;
+                while (end < limit && buffer[end] != '\n' && buffer[end] != '\r') {
+                    end++;
+                }
+                batch.append(buffer, position, end);
+                if (end == limit) {
+                    position = end;
+                    continue;
+                }
+                skipLF = buffer[end] == '\r';
+                position = end + 1;
+                batch.endLine();
+                inLine = false;
+            }
+            return batch.size() > before;
+        }
+
+        private boolean fill() throws IOException {
+            int n;
+            do {
+                n = reader.read(buffer);
+            } while (n == 0);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            position = 0;
+            limit = n;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    //BufferedWriter.newLine after every line, as copyNonEmptyLines does
+    static final class WriterSink implements Sink {
+        private final BufferedWriter writer;
+
+        WriterSink(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(LineBatch batch) throws IOException {
+            var chars = batch.chars();
+            for (int i = 0; i < batch.size(); i++) {
+                writer.write(chars, batch.start(i), batch.end(i) - batch.start(i));
+                writer.newLine();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    //lets callers collect or adapt output, e.g. any Writer
+    static Opener<Sink> writerSink(Writer writer) {
+        return () -> new WriterSink(writer instanceof BufferedWriter b ? b : new BufferedWriter(writer));
+    }
+}
@@ -0,0 +1,253 @@
+package advanced_features.part9_trywith;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+//copyNonEmptyLines without decoding: the input is mapped window by window and scanned as bytes,
+//runs of kept lines go out as whole ranges - transferTo for long runs, one buffered write for short ones
+//output is byte-identical to Part9Test.copyNonEmptyLines; charsets that are not ASCII-compatible take the reader path
+final class MappedLineCopy {
+
+    static final long WINDOW = 64L << 20;
+    private static final int TRANSFER_THRESHOLD = 64 << 10;
+    private static final int BUFFER_SIZE = 256 << 10;
+
+    private MappedLineCopy() {
+    }
+
+    //sees every non-blank line of the input before it is copied: offset and length of its bytes, terminator excluded
+    @FunctionalInterface
+    interface LinePredicate {
+        boolean test(long offset, int length);
+    }
+
+    //a Sink told which part of the input the ranges it gets refer to
+    interface WindowSink extends ByteLineFilter.Sink {
+        void window(ByteBuffer map, long position);
+
+        void endOfWindow();
+    }
+
+    //default charset, like FileReader/FileWriter
+    static void copyNonEmptyLines(String fileIn, String fileOut) throws IOException {
+        copyNonEmptyLines(Path.of(fileIn), Path.of(fileOut), Charset.defaultCharset());
+    }
+
+    static void copyNonEmptyLines(Path in, Path out, Charset charset) throws IOException {
+        copyNonEmptyLines(in, out, charset, WINDOW);
+    }
+
+    //also writes a LineIndex of out to index, for IndexedLineFile
+    static void copyNonEmptyLines(Path in, Path out, Charset charset, Path index) throws IOException {
+        if (!ByteLineFilter.isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("indexing needs an ASCII-compatible charset: " + charset);
+        }
+        try (var indexWriter = LineIndex.writer(index)) {
+            copy(in, out, charset, WINDOW, indexWriter, null);
+            indexWriter.finish();
+        }
+    }
+
+    //window is the mapped size, it only grows for a line longer than itself
+    static void copyNonEmptyLines(Path in, Path out, Charset charset, long window) throws IOException {
+        if (!ByteLineFilter.isAsciiCompatible(charset)) {
+            copyWithReader(in, out, charset);
+            return;
+        }
+        copy(in, out, charset, window, null, null);
+    }
+
+    //index and predicate are optional
+    static void copy(Path in, Path out, Charset charset, long window, LineIndex.Writer index, LinePredicate predicate) throws IOException {
+        var filter = new ByteLineFilter(charset);
+        try (
+            FileChannel src = FileChannel.open(in, READ);
+            FileChannel dst = FileChannel.open(out, WRITE, CREATE, TRUNCATE_EXISTING)
+        ) {
+            var writer = new RangeWriter(src, dst, index, predicate);
+            filterWindows(src, window, filter, writer);
+            writer.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause(); //the sink callbacks cannot throw IOException
+        }
+    }
+
+    //maps src window by window and runs filter over it
+    static void filterWindows(FileChannel src, long window, ByteLineFilter filter, WindowSink sink) throws IOException {
+        long size = src.size(), position = 0, length = window;
+        while (position < size) {
+            length = Math.min(length, size - position);
+            boolean endOfInput = position + length == size;
+            MappedByteBuffer map = src.map(FileChannel.MapMode.READ_ONLY, position, length);
+            sink.window(map, position);
+            int done = filter.filter(map, 0, (int) length, endOfInput, sink);
+            sink.endOfWindow();
+            if (done == 0 && !endOfInput) {
+                if (length >= Integer.MAX_VALUE) {
+                    throw new IOException("line longer than " + Integer.MAX_VALUE + " bytes at " + position);
+                }
+                length = Math.min(length * 2, Integer.MAX_VALUE);
+                continue;
+            }
+            position += done;
+            length = window;
+        }
+    }
+
+    static void copyWithReader(Path in, Path out, Charset charset) throws IOException {
+        try (
+            BufferedReader br = new BufferedReader(new FileReader(in.toFile(), charset));
+            BufferedWriter bw = new BufferedWriter(new FileWriter(out.toFile(), charset))
+        ) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isBlank()) {
+                    bw.write(line);
+                    bw.newLine();
+                }
+            }
+        }
+    }
+
+    //merges adjacent ranges, so a run of kept lines costs one copy or one transferTo
+    //with an index, the output offset of every line end goes to it: one varint per line, no extra pass
+    private static final class RangeWriter implements WindowSink {
+        private final FileChannel src;
+        private final FileChannel dst;
+        private final LineIndex.Writer index;
+        private final LinePredicate predicate;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer map;
+        private long mapPosition;
+        private int from, to;
+        private long written;
+
+        RangeWriter(FileChannel src, FileChannel dst, LineIndex.Writer index, LinePredicate predicate) {
+            this.src = src;
+            this.dst = dst;
+            this.index = index;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public void window(ByteBuffer map, long mapPosition) {
+            this.map = map;
+            this.mapPosition = mapPosition;
+        }
+
+        @Override
+        public void endOfWindow() {
+            flushRange();
+        }
+
+        @Override
+        public boolean accept(int from, int to) {
+            return predicate == null || predicate.test(mapPosition + from, to - from);
+        }
+
+        @Override
+        public void range(int from, int to) {
+            written += to - from;
+            if (this.to != this.from && this.to == from) {
+                this.to = to;
+                return;
+            }
+            flushRange();
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void bytes(byte[] bytes) {
+            written += bytes.length;
+            flushRange();
+            if (bytes.length > buffer.remaining()) {
+                drain();
+            }
+            if (bytes.length > buffer.capacity()) {
+                write(ByteBuffer.wrap(bytes));
+            } else {
+                buffer.put(bytes);
+            }
+        }
+
+        @Override
+        public void endOfLine() {
+            if (index != null) {
+                try {
+                    index.add(written);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        void flushRange() {
+            int length = to - from;
+            if (length == 0) {
+                return;
+            }
+            try {
+                if (length >= TRANSFER_THRESHOLD) {
+                    drain();
+                    long position = mapPosition + from, remaining = length;
+                    while (remaining > 0) {
+                        long sent = src.transferTo(position, remaining, dst);
+                        if (sent == 0) { //nothing left at position: the file shrank since it was mapped
+                            throw new IOException("input ended at " + position + ", " + remaining + " bytes short of the mapped range");
+                        }
+                        position += sent;
+                        remaining -= sent;
+                    }
+                } else {
+                    if (length > buffer.remaining()) {
+                        drain();
+                    }
+                    buffer.put(map.slice(from, length));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            from = to = 0;
+        }
+
+        void flush() throws IOException {
+            flushRange();
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dst.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void drain() {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer bytes) {
+            try {
+                while (bytes.hasRemaining()) {
+                    dst.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package advanced_features.part9_trywith;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+//set of lines of one mapped file, kept outside the heap: open addressing over 24-byte slots (hash, offset, length)
+//the line bytes stay in the file - a slot only points at the first occurrence, and a 64-bit hash match is confirmed
+//by comparing the bytes, so hash collisions never merge different lines
+//the table grows by doubling while old and new table together stay under maxBytes; past that add() answers FULL
+final class OffHeapLineSet implements AutoCloseable {
+
+    static final int ADDED = 0;
+    static final int DUPLICATE = 1;
+    static final int FULL = 2;
+
+    static final long SLOT_BYTES = 24;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final double MAX_LOAD = 0.6;
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment data;
+    private final long maxBytes;
+    private Arena arena;
+    private MemorySegment table;
+    private long capacity;
+    private long size;
+
+    OffHeapLineSet(MemorySegment data, long maxBytes) {
+        if (maxBytes < INITIAL_CAPACITY * SLOT_BYTES) {
+            throw new IllegalArgumentException("maxBytes below the smallest table: " + maxBytes);
+        }
+        this.data = data;
+        this.maxBytes = maxBytes;
+        this.capacity = INITIAL_CAPACITY;
+        this.arena = Arena.ofConfined();
+        this.table = arena.allocate(capacity * SLOT_BYTES, 8);
+    }
+
+    long size() {
+        return size;
+    }
+
+    long tableBytes() {
+        return capacity * SLOT_BYTES;
+    }
+
+    //the line data[offset, offset + length): ADDED if it is new, DUPLICATE if an equal line was added before,
+    //FULL if it is new but there is no room for it
+    int add(long offset, int length) {
+        return add(hash(data, offset, length), offset, length);
+    }
+
+    //with hash(data, offset, length) already at hand
+    int add(long hash, long offset, int length) {
+        long slot = find(hash, offset, length);
+        if (slot < 0) {
+            return DUPLICATE;
+        }
+        if (size + 1 > capacity * MAX_LOAD) {
+            if ((capacity * 3) * SLOT_BYTES > maxBytes) { //old table plus the doubled one
+                return FULL;
+            }
+            grow();
+            slot = find(hash, offset, length);
+        }
+        table.set(ValueLayout.JAVA_LONG, slot, hash);
+        table.set(ValueLayout.JAVA_LONG, slot + 8, offset);
+        table.set(ValueLayout.JAVA_LONG, slot + 16, length);
+        size++;
+        return ADDED;
+    }
+
+    //byte position of the free slot for the line, -1 when an equal line is already in
+    private long find(long hash, long offset, int length) {
+        long mask = capacity - 1;
+        for (long i = hash & mask; ; i = (i + 1) & mask) {
+            long position = i * SLOT_BYTES;
+            long stored = table.get(ValueLayout.JAVA_LONG, position);
+            if (stored == 0) {
+                return position;
+            }
+            if (stored == hash
+                    && table.get(ValueLayout.JAVA_LONG, position + 16) == length
+                    && MemorySegment.mismatch(data, offset, offset + length,
+                            data, table.get(ValueLayout.JAVA_LONG, position + 8), table.get(ValueLayout.JAVA_LONG, position + 8) + length) == -1) {
+                return -1;
+            }
+        }
+    }
+
+    private void grow() {
+        var oldArena = arena;
+        var oldTable = table;
+        long oldCapacity = capacity;
+        capacity *= 2;
+        arena = Arena.ofConfined();
+        table = arena.allocate(capacity * SLOT_BYTES, 8);
+        long mask = capacity - 1;
+        for (long i = 0; i < oldCapacity; i++) {
+            long hash = oldTable.get(ValueLayout.JAVA_LONG, i * SLOT_BYTES);
+            if (hash == 0) {
+                continue;
+            }
+            long j = hash & mask;
+            while (table.get(ValueLayout.JAVA_LONG, j * SLOT_BYTES) != 0) {
+                j = (j + 1) & mask;
+            }
+            MemorySegment.copy(oldTable, i * SLOT_BYTES, table, j * SLOT_BYTES, SLOT_BYTES);
+        }
+        oldArena.close();
+    }
+
+    //64-bit hash of the bytes, never 0 (0 marks a free slot); the top bits pick spill partitions, the low bits table slots
+    static long hash(MemorySegment data, long offset, int length) {
+        long h = 0x9E3779B97F4A7C15L ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = (h ^ data.get(WORD, offset + i)) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 29;
+        }
+        long tail = 0;
+        for (; i < length; i++) {
+            tail = (tail << 8) | (data.get(ValueLayout.JAVA_BYTE, offset + i) & 0xFF);
+        }
+        h = (h ^ tail) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 27;
+        return h == 0 ? 1 : h;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,169 @@
+package advanced_features.part9_trywith;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+//copyNonEmptyLines on all cores: the input is cut into chunks that end right after a \n (so every chunk holds whole lines,
+//\r\n never split), workers filter chunks into byte arrays, and the calling thread writes them back in input order
+//the reorder buffer is a queue of at most maxInFlight futures - the writer waits on the oldest, so memory is bounded
+//by maxInFlight chunks whatever order the workers finish in
+final class ParallelLineCopy {
+
+    static final int CHUNK_SIZE = 16 << 20;
+    private static final int SCAN_SIZE = 64 << 10;
+
+    private ParallelLineCopy() {
+    }
+
+    static void copyNonEmptyLines(String fileIn, String fileOut) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        copyNonEmptyLines(Path.of(fileIn), Path.of(fileOut), Charset.defaultCharset(), threads, CHUNK_SIZE);
+    }
+
+    static void copyNonEmptyLines(Path in, Path out, Charset charset, int threads, int chunkSize) throws IOException {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("threads and chunkSize must be positive: " + threads + ", " + chunkSize);
+        }
+        if (!ByteLineFilter.isAsciiCompatible(charset)) {
+            MappedLineCopy.copyWithReader(in, out, charset);
+            return;
+        }
+        int maxInFlight = threads * 2;
+        var pending = new ArrayDeque<Future<ByteBuffer>>(maxInFlight);
+        try (
+            FileChannel src = FileChannel.open(in, READ);
+            FileChannel dst = FileChannel.open(out, WRITE, CREATE, TRUNCATE_EXISTING);
+            ExecutorService workers = Executors.newFixedThreadPool(threads) //closed first, so no worker outlives src
+        ) {
+            try {
+                long size = src.size(), position = 0;
+                while (position < size) {
+                    if (pending.size() == maxInFlight) {
+                        write(dst, pending.poll());
+                    }
+                    long end = chunkEnd(src, position, chunkSize, size);
+                    long from = position;
+                    pending.add(workers.submit(() -> filterChunk(src, from, end - from, charset)));
+                    position = end;
+                }
+                while (!pending.isEmpty()) {
+                    write(dst, pending.poll());
+                }
+            } finally {
+                pending.forEach(f -> f.cancel(false)); //only left over on failure; no interrupt, it would close the shared channel
+            }
+        }
+    }
+
+    //first position after a \n at or past position + chunkSize, or the end of the file
+    private static long chunkEnd(FileChannel src, long position, int chunkSize, long size) throws IOException {
+        long at = position + chunkSize;
+        if (at >= size) {
+            return size;
+        }
+        var scan = ByteBuffer.allocate(SCAN_SIZE);
+        while (at < size) {
+            scan.clear();
+            int read = src.read(scan, at);
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += read;
+        }
+        return size;
+    }
+
+    private static ByteBuffer filterChunk(FileChannel src, long position, long length, Charset charset) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("line longer than " + Integer.MAX_VALUE + " bytes at " + position);
+        }
+        var map = src.map(FileChannel.MapMode.READ_ONLY, position, length);
+        var out = new ChunkOutput(map, (int) Math.min(length + 64, Integer.MAX_VALUE - 8));
+        new ByteLineFilter(charset).filter(map, 0, (int) length, true, out); //chunks hold whole lines only
+        return out.toByteBuffer();
+    }
+
+    private static void write(FileChannel dst, Future<ByteBuffer> chunk) throws IOException {
+        var bytes = await(chunk);
+        while (bytes.hasRemaining()) {
+            dst.write(bytes);
+        }
+    }
+
+    //Future.get with the worker's IOException or RuntimeException rethrown as it was
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a worker");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException r) {
+                throw r;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    //growable byte array, sized for the common case where most of the chunk survives
+    private static final class ChunkOutput implements ByteLineFilter.Sink {
+        private final ByteBuffer in;
+        private byte[] bytes;
+        private int size;
+
+        ChunkOutput(ByteBuffer in, int capacity) {
+            this.in = in;
+            this.bytes = new byte[capacity];
+        }
+
+        @Override
+        public void range(int from, int to) {
+            int length = to - from;
+            ensure(length);
+            in.get(from, bytes, size, length);
+            size += length;
+        }
+
+        @Override
+        public void bytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + more, bytes.length * 2));
+            }
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+}
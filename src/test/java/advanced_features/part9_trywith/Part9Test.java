@@ -1,14 +1,40 @@
 package advanced_features.part9_trywith;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class Part9Test {
 
+    @TempDir
+    Path tmp;
+
     public static void copyNonEmptyLines(String fileIn, String fileOut) throws IOException {
 
         try(
@@ -35,6 +61,426 @@ public class Part9Test {
         }
     }
 
+    @Test
+    void test_mapped_copy() throws IOException {
+        var samples = List.of(
+                "",
+                "one line, no terminator",
+                "a\n\nb\n  \t\n\nc\n",
+                "windows\r\n\r\n \r\nline\r\n",
+                "old mac\r\rline\r",
+                "mixed\n\r\n\r \u000b\u001f\nend",
+                "unicode \u00e9\u4e2d\n\u3000\u2003\n\u00a0\n\u2028\n",
+                "\n\n\n"
+        );
+        int n = 0;
+        for (var sample : samples) {
+            assertSameCopy("sample" + n++, sample.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8, MappedLineCopy.WINDOW);
+        }
+        //malformed UTF-8 is replaced by the reader path, the mapped copy has to do the same
+        var malformed = new byte[]{'o', 'k', '\n', (byte) 0xC3, '\n', 'x', (byte) 0xE2, (byte) 0x82, '\r', '\n', (byte) 0xFF, ' ', '\n', (byte) 0xF0, (byte) 0x9F};
+        assertSameCopy("malformed", malformed, StandardCharsets.UTF_8, MappedLineCopy.WINDOW);
+        assertSameCopy("latin1", "caf\u00e9\n\u00a0\n\u0085\n \n".getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1, MappedLineCopy.WINDOW);
+        assertSameCopy("ascii", malformed, StandardCharsets.US_ASCII, MappedLineCopy.WINDOW);
+        assertSameCopy("utf16", "a\n\nb\n".getBytes(StandardCharsets.UTF_16), StandardCharsets.UTF_16, MappedLineCopy.WINDOW);
+
+        //lines across window borders, \r\n split by a border, lines longer than the window
+        var bytes = mixedText(9, 20_000, 300).getBytes(StandardCharsets.UTF_8);
+        for (long window : new long[]{7, 64, 4096, MappedLineCopy.WINDOW}) {
+            assertSameCopy("big" + window, bytes, StandardCharsets.UTF_8, window);
+        }
+    }
+
+    @Test
+    void test_parallel_copy() throws IOException {
+        //one line longer than a chunk, no final terminator
+        var in = Files.writeString(tmp.resolve("in"), mixedText(11, 50_000, 2000) + "\n" + "z".repeat(100_000) + "\r\r\n \n last");
+        var expected = expectedCopy(in);
+
+        for (int threads : new int[]{1, 3, 8}) {
+            for (int chunk : new int[]{1, 1000, 65_536, ParallelLineCopy.CHUNK_SIZE}) {
+                var out = tmp.resolve("out-" + threads + "-" + chunk);
+                ParallelLineCopy.copyNonEmptyLines(in, out, Charset.defaultCharset(), threads, chunk);
+                assertSameBytes(expected, out, threads + " threads, chunk " + chunk);
+            }
+        }
+
+        var empty = Files.write(tmp.resolve("empty"), new byte[0]);
+        ParallelLineCopy.copyNonEmptyLines(empty, tmp.resolve("empty.out"), Charset.defaultCharset(), 4, 10);
+        assertEquals(0, Files.size(tmp.resolve("empty.out")));
+
+        assertThrows(IOException.class, () -> ParallelLineCopy.copyNonEmptyLines(tmp.resolve("missing").toString(), tmp.resolve("x").toString()));
+    }
+
+    @Test
+    void test_line_pipeline() throws IOException {
+        var in = Files.writeString(tmp.resolve("in"), mixedText(5, 10_000, 20_000));
+        var expected = expectedCopy(in);
+        var actual = tmp.resolve("actual");
+        for (int batch : new int[]{1, 7, LinePipeline.BATCH_SIZE}) {
+            LinePipeline.lines(in, Charset.defaultCharset()).batchSize(batch).filter(LinePipeline::isNotBlank).toFile(actual, Charset.defaultCharset());
+            assertSameBytes(expected, actual, "batch " + batch);
+        }
+
+        //transform, dedupe, split into two outputs
+        var vowels = new StringWriter();
+        var others = new StringWriter();
+        var source = "banana\napple\n\nBanana\ncherry\r\norange\napple\n";
+        long written = LinePipeline.from(() -> new LinePipeline.ReaderSource(new StringReader(source)))
+                .batchSize(2)
+                .filter(LinePipeline::isNotBlank)
+                .map(line -> line.toString().toUpperCase())
+                .distinct()
+                .split(line -> "AEIOU".indexOf(line.charAt(0)) >= 0 ? 0 : 1,
+                        LinePipeline.writerSink(vowels), LinePipeline.writerSink(others));
+        assertEquals(4, written);
+        var nl = System.lineSeparator();
+        assertEquals("APPLE" + nl + "ORANGE" + nl, vowels.toString());
+        assertEquals("BANANA" + nl + "CHERRY" + nl, others.toString());
+
+        //a failing body keeps close failures as suppressed, in reverse order of opening
+        var closed = new ArrayList<String>();
+        LinePipeline.Source failingSource = new LinePipeline.Source() {
+            @Override
+            public boolean read(LineBatch batch) {
+                throw new IllegalStateException("read failed");
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed.add("source");
+                throw new IOException("cannot close source");
+            }
+        };
+        var failure = assertThrows(IllegalStateException.class, () -> LinePipeline.from(() -> failingSource).to(closingSink("sink1", closed), closingSink("sink2", closed)));
+        assertEquals(List.of("sink2", "sink1", "source"), closed);
+        assertEquals(List.of("cannot close sink2", "cannot close sink1", "cannot close source"),
+                Arrays.stream(failure.getSuppressed()).map(Throwable::getMessage).toList());
+
+        //an Error from one close() still lets the others close, and is thrown itself without a primary failure
+        closed.clear();
+        LinePipeline.Source closingSource = new LinePipeline.Source() {
+            @Override
+            public boolean read(LineBatch batch) {
+                return false;
+            }
+
+            @Override
+            public void close() {
+                closed.add("source");
+            }
+        };
+        LinePipeline.Opener<LinePipeline.Sink> errorSink = () -> new LinePipeline.Sink() {
+            @Override
+            public void write(LineBatch batch) {
+            }
+
+            @Override
+            public void close() {
+                closed.add("error");
+                throw new AssertionError("sink broken");
+            }
+        };
+        var error = assertThrows(AssertionError.class, () -> LinePipeline.from(() -> closingSource).to(closingSink("sink1", closed), errorSink));
+        assertEquals(List.of("error", "sink1", "source"), closed);
+        assertEquals(List.of("cannot close sink1"), Arrays.stream(error.getSuppressed()).map(Throwable::getMessage).toList());
+        closed.clear();
+        failure = assertThrows(IllegalStateException.class, () -> LinePipeline.from(() -> failingSource).to(errorSink, closingSink("sink2", closed)));
+        assertEquals(List.of("sink2", "error", "source"), closed);
+        assertEquals(List.of("cannot close sink2", "sink broken", "cannot close source"),
+                Arrays.stream(failure.getSuppressed()).map(Throwable::getMessage).toList());
+
+        //a sink that cannot be opened closes what was opened before it, nothing more
+        closed.clear();
+        LinePipeline.Source emptySource = new LinePipeline.Source() {
+            @Override
+            public boolean read(LineBatch batch) {
+                return false;
+            }
+
+            @Override
+            public void close() {
+                closed.add("source");
+            }
+        };
+        assertThrows(FileNotFoundException.class, () -> LinePipeline.from(() -> emptySource)
+                .to(closingSink("sink1", closed), LinePipeline.fileSink(tmp.resolve("no/such/dir"), Charset.defaultCharset())));
+        assertEquals(List.of("sink1", "source"), closed);
+    }
+
+    @Test
+    void test_external_sort() throws IOException {
+        var disk1 = Files.createDirectory(tmp.resolve("disk1"));
+        var disk2 = Files.createDirectory(tmp.resolve("disk2"));
+        var random = new Random(3);
+        var lines = new ArrayList<String>();
+        for (int i = 0; i < 20_000; i++) {
+            lines.add(switch (random.nextInt(4)) {
+                case 0 -> "";
+                case 1 -> "Key" + random.nextInt(500);
+                case 2 -> "key" + random.nextInt(500);
+                default -> Integer.toString(random.nextInt(1_000_000), 36) + " \u00e9";
+            });
+        }
+        var in = Files.write(tmp.resolve("in"), lines);
+
+        var natural = ExternalSort.builder().memoryBudget(64 << 10).threads(3).tempDirectories(disk1).build();
+        var out = tmp.resolve("natural");
+        assertEquals(lines.size(), natural.sort(in, out));
+        assertEquals(lines.stream().sorted().toList(), Files.readAllLines(out));
+
+        //many runs with fanIn 2 forces several merge levels
+        var deduped = ExternalSort.builder().memoryBudget(16 << 10).threads(4).fanIn(2).compressSpills(true)
+                .comparator(String.CASE_INSENSITIVE_ORDER).distinct(true).tempDirectories(disk1, disk2).build();
+        out = tmp.resolve("deduped");
+        var expected = new ArrayList<String>();
+        for (var line : lines.stream().sorted(String.CASE_INSENSITIVE_ORDER).toList()) { //stable: the first of equal lines survives
+            if (expected.isEmpty() || !expected.getLast().equalsIgnoreCase(line)) {
+                expected.add(line);
+            }
+        }
+        assertEquals(expected.size(), deduped.sort(in, out));
+        assertEquals(expected, Files.readAllLines(out));
+
+        //budget for two merges at a time: the groups of a level overlap, still in run order
+        var overlapping = ExternalSort.builder().memoryBudget(512 << 10).threads(3).fanIn(2).tempDirectories(disk1, disk2).build();
+        out = tmp.resolve("overlapping");
+        assertEquals(lines.size(), overlapping.sort(in, out));
+        assertEquals(lines.stream().sorted().toList(), Files.readAllLines(out));
+
+        //fits in memory, nothing spilled
+        var inMemory = ExternalSort.builder().comparator(Comparator.reverseOrder()).tempDirectories(disk1).build();
+        out = tmp.resolve("reversed");
+        inMemory.sort(in, out);
+        assertEquals(lines.stream().sorted(Comparator.reverseOrder()).toList(), Files.readAllLines(out));
+
+        try (var left1 = Files.list(disk1); var left2 = Files.list(disk2)) {
+            assertEquals(0, left1.count() + left2.count());
+        }
+    }
+
+    @Test
+    void test_line_index() throws IOException {
+        var in = Files.writeString(tmp.resolve("in"), mixedText(17, 30_000, 40_000));
+        var random = new Random(17);
+        var out = tmp.resolve("out");
+        var index = tmp.resolve("out.idx");
+        MappedLineCopy.copyNonEmptyLines(in, out, Charset.defaultCharset(), index);
+
+        var expected = Files.readAllLines(out);
+        try (var file = IndexedLineFile.open(out, index, Charset.defaultCharset())) {
+            assertEquals(expected.size(), file.lineCount());
+            for (int n = 0; n < expected.size(); n += 1 + random.nextInt(50)) {
+                assertEquals(expected.get(n), file.line(n));
+            }
+            assertEquals(expected.getLast(), file.line(expected.size() - 1));
+            int from = expected.size() / 3;
+            assertEquals(expected.subList(from, from + 100), file.lines(from, from + 100));
+            assertEquals(List.of(), file.lines(from, from));
+            assertThrows(IndexOutOfBoundsException.class, () -> file.line(expected.size()));
+        }
+        assertTrue(Files.size(index) < Files.size(out) / 100, "index is " + Files.size(index) + " bytes");
+
+        //a copy that failed leaves an index open() rejects
+        try (var writer = LineIndex.writer(tmp.resolve("broken.idx"))) {
+            writer.add(10);
+        }
+        assertThrows(IOException.class, () -> LineIndex.open(tmp.resolve("broken.idx")));
+    }
+
+    @Test
+    void test_unique_copy() throws IOException {
+        var spill = Files.createDirectory(tmp.resolve("spill"));
+        var in = Files.writeString(tmp.resolve("in"), mixedText(23, 40_000, 100) + "\ndup 7");
+        var copied = expectedCopy(in);
+        var nl = System.lineSeparator();
+        var expected = String.join(nl, new LinkedHashSet<>(Files.readAllLines(copied))) + nl;
+
+        var inMemory = tmp.resolve("in-memory");
+        UniqueLineCopy.copyUniqueNonEmptyLines(in, inMemory, Charset.defaultCharset(), UniqueLineCopy.DEFAULT_MEMORY_CEILING, spill);
+        assertEquals(expected, Files.readString(inMemory));
+
+        //a ceiling of a few thousand slots: partitions, and partitions split again
+        var partitioned = tmp.resolve("partitioned");
+        UniqueLineCopy.copyUniqueNonEmptyLines(in, partitioned, Charset.defaultCharset(), 64 << 10, spill);
+        assertEquals(expected, Files.readString(partitioned));
+        try (var left = Files.list(spill)) {
+            assertEquals(0, left.count());
+        }
+
+        //equal hashes alone never merge lines: every line of a small set survives
+        try (var arena = Arena.ofConfined()) {
+            var bytes = "abcabcab".getBytes(StandardCharsets.US_ASCII);
+            var data = arena.allocate(bytes.length);
+            data.copyFrom(MemorySegment.ofArray(bytes));
+            try (var set = new OffHeapLineSet(data, 1 << 20)) {
+                assertEquals(OffHeapLineSet.ADDED, set.add(0, 3));
+                assertEquals(OffHeapLineSet.DUPLICATE, set.add(3, 3));
+                assertEquals(OffHeapLineSet.ADDED, set.add(0, 2));
+                assertEquals(OffHeapLineSet.ADDED, set.add(1, 3));
+                assertEquals(OffHeapLineSet.DUPLICATE, set.add(6, 2));
+                assertEquals(3, set.size());
+            }
+        }
+    }
+
+    private static LinePipeline.Opener<LinePipeline.Sink> closingSink(String name, List<String> closed) {
+        return () -> new LinePipeline.Sink() {
+            @Override
+            public void write(LineBatch batch) {
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed.add(name);
+                throw new IOException("cannot close " + name);
+            }
+        };
+    }
+
+    @Test
+    void test_async_copy() throws IOException {
+        var text = mixedText(29, 30_000, 5000);
+        var in = Files.writeString(tmp.resolve("in"), text);
+        var expected = expectedCopy(in);
+
+        //blocks smaller than lines, a \r\n split between blocks, the minimum of two buffers
+        for (int bufferSize : new int[]{4096, 65_536, AsyncLineCopy.BUFFER_SIZE}) {
+            for (int bufferCount : new int[]{2, AsyncLineCopy.BUFFER_COUNT}) {
+                var out = tmp.resolve("out-" + bufferSize + "-" + bufferCount);
+                AsyncLineCopy.copyNonEmptyLines(in, out, Charset.defaultCharset(), bufferSize, bufferCount);
+                assertSameBytes(expected, out, bufferSize + " x " + bufferCount);
+            }
+        }
+        var head = text.substring(0, 5000);
+        for (var sample : List.of("", "\r", "a\r", "\r\n\r\n", "a\rb\r\nc", head)) {
+            var small = Files.writeString(tmp.resolve("small"), sample);
+            var smallExpected = expectedCopy(small);
+            for (int bufferSize : new int[]{1, 2, 3}) {
+                var out = tmp.resolve("small.out");
+                AsyncLineCopy.copyNonEmptyLines(small, out, Charset.defaultCharset(), bufferSize, 2);
+                assertSameBytes(smallExpected, out, bufferSize + ": " + sample);
+            }
+        }
+    }
+
+    @Test
+    void test_resource_pool() throws Exception {
+        var ids = new AtomicInteger();
+        var valid = new AtomicBoolean(true);
+        var clock = new AtomicLong(); //stands still until the eviction part, so nothing is evicted while counting
+        var pool = ResourcePool.builder(() -> new TheResource(ids.incrementAndGet()))
+                .maxSize(2)
+                .validator(_ -> valid.get())
+                .ticker(clock::get)
+                .idleTimeout(Duration.ofMillis(100))
+                .evictionInterval(Duration.ofMillis(10))
+                .borrowTimeout(Duration.ofMillis(50))
+                .build();
+
+        //hot path: the same resource every time, opened once
+        TheResource first;
+        try (var lease = pool.borrow()) {
+            first = lease.get();
+        }
+        for (int i = 0; i < 10; i++) {
+            try (var lease = pool.borrow()) {
+                assertSame(first, lease.get());
+            }
+        }
+        assertEquals(1, pool.createdCount());
+
+        //bounded: a third borrower waits, then times out
+        try (var a = pool.borrow(); var b = pool.borrow()) {
+            assertNotSame(a.get(), b.get());
+            assertThrows(TimeoutException.class, pool::borrow);
+        }
+        assertEquals(2, pool.createdCount());
+        assertEquals(2, pool.idleCount());
+
+        //a task failing halfway: the resource is retired, not handed out again
+        try (var lease = pool.borrow()) {
+            assertThrows(NullPointerException.class, () -> {
+                lease.invalidate();
+                lease.get().tryTask();
+            });
+        }
+        assertEquals(1, pool.idleCount());
+
+        //resources failing validation are retired on borrow
+        valid.set(false);
+        try (var lease = pool.borrow()) {
+            assertNotSame(first, lease.get());
+            assertEquals(3, pool.createdCount());
+            assertEquals(0, pool.idleCount());
+        }
+        valid.set(true);
+
+        //idle longer than idleTimeout: evicted in the background
+        clock.addAndGet(Duration.ofMillis(100).toNanos());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.idleCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.idleCount());
+
+        //every TheResource fails to close: all of them end up suppressed on the pool's close
+        var late = pool.borrow();
+        var e = assertThrows(ResourcePool.CloseException.class, pool::close);
+        assertEquals(3, e.getSuppressed().length);
+        assertThrows(IllegalStateException.class, pool::borrow);
+
+        //a lease out while the pool closed is closed when it comes back, the failure thrown to whoever gives it back
+        var lateFailure = assertThrows(ResourcePool.CloseException.class, late::close);
+        assertEquals("cannot close resource:4", lateFailure.getCause().getMessage());
+        assertEquals(4, pool.createdCount());
+    }
+
+    //text the copy variants are checked with: blank and whitespace-only lines, \n, \r\n and lone \r terminators,
+    //non-ASCII letters and spaces, repeated lines, lines up to maxLineLength long, no terminator at the very end
+    private static String mixedText(long seed, int lines, int maxLineLength) {
+        var random = new Random(seed);
+        var text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (random.nextInt(8)) {
+                case 0 -> text.append("\n");
+                case 1 -> text.append(" \t\r\n");
+                case 2 -> text.append("\u2003\u3000\r");
+                case 3 -> text.append("cr ").append(i).append(" \u00fc\r");
+                case 4 -> text.append("dup ").append(random.nextInt(50)).append(random.nextBoolean() ? "\n" : "\r\n");
+                case 5 -> text.append("\u00e9\u4e2d ").append(i).append("\r\n");
+                case 6 -> text.append("x".repeat(random.nextInt(maxLineLength))).append("\n");
+                default -> text.append("line ").append(i).append("\n");
+            }
+        }
+        return text.append("last ").append(lines).toString();
+    }
+
+    //what copyNonEmptyLines makes of in: the reference every copy variant has to match byte for byte
+    private static Path expectedCopy(Path in) throws IOException {
+        var expected = in.resolveSibling(in.getFileName() + ".expected");
+        copyNonEmptyLines(in.toString(), expected.toString());
+        return expected;
+    }
+
+    private static void assertSameBytes(Path expected, Path actual, String message) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual), message);
+    }
+
+    private void assertSameCopy(String name, byte[] content, Charset charset, long window) throws IOException {
+        var in = Files.write(tmp.resolve(name), content);
+        Path expected;
+        if (charset.equals(Charset.defaultCharset())) {
+            expected = expectedCopy(in);
+        } else {
+            expected = tmp.resolve(name + ".expected");
+            MappedLineCopy.copyWithReader(in, expected, charset);
+        }
+        var actual = tmp.resolve(name + ".actual");
+        MappedLineCopy.copyNonEmptyLines(in, actual, charset, window);
+        assertSameBytes(expected, actual, name);
+    }
+
     @Test
     void test_autoclosable() {
         TheResource test1 = new TheResource(1); //as long as constructor does not fail !!!
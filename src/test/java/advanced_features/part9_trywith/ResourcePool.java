@@ -0,0 +1,329 @@
+package advanced_features.part9_trywith;
+
+import java.io.Serial;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+//bounded pool of AutoCloseable resources that are expensive to open and slow to close, like TheResource
+//borrow() hands out a Lease for try-with-resources, closing the lease gives the resource back instead of closing it
+//idle resources are reused most recently returned first, checked with the validator on borrow, and closed once idle
+//longer than idleTimeout; every close happens on one background thread, off the borrowers' path
+//close() failures are kept and thrown as suppressed exceptions by the pool's own close(), as try-with-resources would do;
+//a lease given back after that is closed right away and its failure thrown from Lease.close(), there is no later to keep it for
+final class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
+
+    private static final int MAX_KEPT_FAILURES = 64;
+
+    //opens a new resource, may fail like a constructor
+    @FunctionalInterface
+    interface Factory<R> {
+        R create() throws Exception;
+    }
+
+    //resources failed to close: the resource's own exception is the cause, or with several of them each is suppressed
+    static final class CloseException extends Exception {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        CloseException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private record Idle<R>(R resource, long since) {}
+
+    private final Factory<? extends R> factory;
+    private final Predicate<? super R> validator;
+    private final LongSupplier ticker;
+    private final long idleTimeoutNanos;
+    private final long borrowTimeoutNanos;
+    private final Semaphore leases;
+    private final ArrayDeque<Idle<R>> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService closer;
+    private final List<Exception> closeFailures = new ArrayList<>();
+    private int lostFailures;
+    private long created;
+    private boolean closed;
+
+    private ResourcePool(Builder<R> builder) {
+        this.factory = builder.factory;
+        this.validator = builder.validator;
+        this.ticker = builder.ticker;
+        this.idleTimeoutNanos = builder.idleTimeout.toNanos();
+        this.borrowTimeoutNanos = builder.borrowTimeout.toNanos();
+        this.leases = new Semaphore(builder.maxSize, true);
+        var executor = new ScheduledThreadPoolExecutor(1, task -> {
+            var thread = new Thread(task, "resource-pool-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.closer = executor;
+        long evictEvery = builder.evictionInterval.toNanos();
+        closer.scheduleWithFixedDelay(this::evictIdle, evictEvery, evictEvery, TimeUnit.NANOSECONDS);
+    }
+
+    static <R extends AutoCloseable> Builder<R> builder(Factory<? extends R> factory) {
+        return new Builder<>(factory);
+    }
+
+    static final class Builder<R extends AutoCloseable> {
+        private final Factory<? extends R> factory;
+        private int maxSize = Runtime.getRuntime().availableProcessors();
+        private Predicate<? super R> validator = _ -> true;
+        private LongSupplier ticker = System::nanoTime;
+        private Duration idleTimeout = Duration.ofMinutes(5);
+        private Duration evictionInterval = Duration.ofSeconds(30);
+        private Duration borrowTimeout = Duration.ofSeconds(30);
+
+        private Builder(Factory<? extends R> factory) {
+            this.factory = Objects.requireNonNull(factory);
+        }
+
+        //resources open at once, leased and idle together
+        Builder<R> maxSize(int maxSize) {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+            }
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        //asked before an idle resource is handed out again; false or an exception retires it
+        Builder<R> validator(Predicate<? super R> validator) {
+            this.validator = Objects.requireNonNull(validator);
+            return this;
+        }
+
+        //nanosecond clock idle time is measured with, System.nanoTime() unless a test needs to move time itself
+        Builder<R> ticker(LongSupplier ticker) {
+            this.ticker = Objects.requireNonNull(ticker);
+            return this;
+        }
+
+        Builder<R> idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = positive(idleTimeout, "idleTimeout");
+            return this;
+        }
+
+        //how often the closer thread looks for resources idle too long
+        Builder<R> evictionInterval(Duration evictionInterval) {
+            this.evictionInterval = positive(evictionInterval, "evictionInterval");
+            return this;
+        }
+
+        //how long borrow() waits for a lease when all maxSize resources are out
+        Builder<R> borrowTimeout(Duration borrowTimeout) {
+            this.borrowTimeout = positive(borrowTimeout, "borrowTimeout");
+            return this;
+        }
+
+        ResourcePool<R> build() {
+            return new ResourcePool<>(this);
+        }
+
+        private static Duration positive(Duration duration, String name) {
+            if (duration.isNegative() || duration.isZero()) {
+                throw new IllegalArgumentException(name + " must be positive: " + duration);
+            }
+            return duration;
+        }
+    }
+
+    //a valid idle resource, or a new one if there is none; waits up to borrowTimeout while the pool is exhausted
+    Lease<R> borrow() throws Exception {
+        if (!leases.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+            throw new TimeoutException("no resource free after " + Duration.ofNanos(borrowTimeoutNanos));
+        }
+        try {
+            R resource;
+            while ((resource = pollIdle()) != null) {
+                if (isValid(resource)) {
+                    return new Lease<>(this, resource);
+                }
+                retire(resource);
+            }
+            resource = factory.create();
+            synchronized (this) {
+                created++;
+            }
+            return new Lease<>(this, resource);
+        } catch (Throwable t) {
+            leases.release();
+            throw t;
+        }
+    }
+
+    private synchronized R pollIdle() {
+        if (closed) {
+            throw new IllegalStateException("pool is closed");
+        }
+        var next = idle.pollLast();
+        return next == null ? null : next.resource();
+    }
+
+    private boolean isValid(R resource) {
+        try {
+            return validator.test(resource);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void giveBack(R resource, boolean broken) throws CloseException {
+        try {
+            synchronized (this) {
+                if (!closed) {
+                    if (broken) {
+                        closer.execute(() -> closeQuietly(resource));
+                    } else {
+                        idle.addLast(new Idle<>(resource, ticker.getAsLong()));
+                    }
+                    return;
+                }
+            }
+            closeNow(resource); //the pool's close() has reported already, this failure is the caller's
+        } finally {
+            leases.release();
+        }
+    }
+
+    //closes the resource on the closer thread, or right here once the pool is closed and the closer gone
+    private void retire(R resource) {
+        synchronized (this) {
+            if (!closed) {
+                closer.execute(() -> closeQuietly(resource));
+                return;
+            }
+        }
+        closeQuietly(resource);
+    }
+
+    private void closeNow(R resource) throws CloseException {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new CloseException("resource failed to close", e);
+        }
+    }
+
+    private void closeQuietly(R resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            synchronized (this) {
+                if (closeFailures.size() < MAX_KEPT_FAILURES) {
+                    closeFailures.add(e);
+                } else {
+                    lostFailures++;
+                }
+            }
+        }
+    }
+
+    //runs on the closer thread; idle is ordered by return time, so the oldest are at the head
+    private void evictIdle() {
+        long now = ticker.getAsLong();
+        var expired = new ArrayList<R>();
+        synchronized (this) {
+            while (!idle.isEmpty() && now - idle.peekFirst().since() >= idleTimeoutNanos) {
+                expired.add(idle.pollFirst().resource());
+            }
+        }
+        expired.forEach(this::closeQuietly);
+    }
+
+    synchronized int idleCount() {
+        return idle.size();
+    }
+
+    synchronized long createdCount() {
+        return created;
+    }
+
+    //closes the idle resources and waits for pending closes; leases still out are closed when they come back
+    //throws if any resource failed to close over the pool's lifetime, every failure added as suppressed
+    //an interrupt while waiting for the closer thread ends the wait like the timeout does, the flag kept set
+    @Override
+    public void close() throws TimeoutException, CloseException {
+        List<R> remaining = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            idle.forEach(i -> remaining.add(i.resource()));
+            idle.clear();
+        }
+        closer.shutdown();
+        try {
+            if (!closer.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new TimeoutException("resources still closing after a minute");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("interrupted while resources were still closing");
+        }
+        remaining.forEach(this::closeQuietly);
+        List<Exception> failures;
+        int lost;
+        synchronized (this) {
+            failures = List.copyOf(closeFailures);
+            lost = lostFailures;
+            closeFailures.clear();
+        }
+        if (!failures.isEmpty()) {
+            var e = new CloseException((failures.size() + lost) + " resources failed to close"
+                    + (lost > 0 ? ", the first " + failures.size() + " attached" : ""), null);
+            failures.forEach(e::addSuppressed);
+            throw e;
+        }
+    }
+
+    //a borrowed resource; close() returns it to the pool, after invalidate() it is closed instead
+    //close() only throws once the pool is closed, with the failure of closing the resource on the spot
+    static final class Lease<R extends AutoCloseable> implements AutoCloseable {
+        private final ResourcePool<R> pool;
+        private final R resource;
+        private boolean broken;
+        private boolean returned;
+
+        private Lease(ResourcePool<R> pool, R resource) {
+            this.pool = pool;
+            this.resource = resource;
+        }
+
+        R get() {
+            if (returned) {
+                throw new IllegalStateException("lease already returned");
+            }
+            return resource;
+        }
+
+        //the resource is in a bad state, e.g. a call on it failed halfway: do not hand it out again
+        void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() throws CloseException {
+            if (!returned) {
+                returned = true;
+                pool.giveBack(resource, broken);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package advanced_features.part9_trywith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+//copyNonEmptyLines keeping only the first occurrence of every line, for inputs with far too many lines for a HashSet<String>
+//the whole input is mapped once for OffHeapLineSet to compare lines in place; memory use follows the distinct lines
+//if the table would pass memoryCeiling the single pass is abandoned for a partitioned one:
+//  1. every non-blank line goes as (hash, offset, length) to one of 2^k temp files, by the top bits of its hash
+//  2. each partition is deduped on its own - equal lines always share a partition - leaving the offsets of first
+//     occurrences, in input order; a partition still too big is split again by the next hash bits
+//  3. the input is filtered once more, keeping exactly the lines whose offsets the partitions left
+//lines are compared as input bytes, terminator excluded; output is formatted exactly as copyNonEmptyLines does it
+final class UniqueLineCopy {
+
+    static final long DEFAULT_MEMORY_CEILING = 256L << 20;
+    private static final int SPLIT_BITS = 4;
+    private static final int MAX_PARTITION_BITS = 12;
+
+    private UniqueLineCopy() {
+    }
+
+    static void copyUniqueNonEmptyLines(String fileIn, String fileOut) throws IOException {
+        copyUniqueNonEmptyLines(Path.of(fileIn), Path.of(fileOut), Charset.defaultCharset(),
+                DEFAULT_MEMORY_CEILING, Path.of(System.getProperty("java.io.tmpdir")));
+    }
+
+    //memoryCeiling is for the off-heap table, tempDirectory takes the partitions if it is exceeded
+    static void copyUniqueNonEmptyLines(Path in, Path out, Charset charset, long memoryCeiling, Path tempDirectory) throws IOException {
+        if (!ByteLineFilter.isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("needs an ASCII-compatible charset: " + charset);
+        }
+        try (var arena = Arena.ofShared(); var src = FileChannel.open(in, READ)) {
+            var data = src.map(FileChannel.MapMode.READ_ONLY, 0, src.size(), arena);
+            long reached;
+            long distinct;
+            try (var set = new OffHeapLineSet(data, memoryCeiling)) {
+                var full = new long[]{-1};
+                try {
+                    MappedLineCopy.copy(in, out, charset, MappedLineCopy.WINDOW, null, (offset, length) -> {
+                        int result = set.add(offset, length);
+                        if (result == OffHeapLineSet.FULL) {
+                            full[0] = offset;
+                            throw new TableFull();
+                        }
+                        return result == OffHeapLineSet.ADDED;
+                    });
+                    return;
+                } catch (TableFull e) {
+                    reached = full[0];
+                    distinct = set.size();
+                }
+            }
+            //extrapolate the distinct lines seen so far to the whole input
+            double expected = (double) distinct * data.byteSize() / Math.max(1, reached) / 0.6 * OffHeapLineSet.SLOT_BYTES * 3;
+            int bits = 1;
+            while (bits < MAX_PARTITION_BITS && expected / (1L << bits) > memoryCeiling) {
+                bits++;
+            }
+            partitioned(in, out, charset, data, memoryCeiling, tempDirectory, bits);
+        }
+    }
+
+    private static void partitioned(Path in, Path out, Charset charset, MemorySegment data, long memoryCeiling,
+                                    Path tempDirectory, int bits) throws IOException {
+        var directory = Files.createTempDirectory(tempDirectory, "dedupe");
+        try {
+            var partitions = new ArrayList<Path>();
+            for (int p = 0; p < 1 << bits; p++) {
+                partitions.add(directory.resolve("partition-" + p));
+            }
+            writePartitions(in, charset, data, partitions, bits);
+
+            var survivors = new ArrayList<Path>();
+            for (var partition : partitions) {
+                dedupe(partition, data, memoryCeiling, bits, survivors);
+            }
+
+            try (var next = new SurvivorMerge(survivors)) {
+                MappedLineCopy.copy(in, out, charset, MappedLineCopy.WINDOW, null, (offset, _) -> {
+                    if (offset != next.peek()) {
+                        return false;
+                    }
+                    next.advance();
+                    return true;
+                });
+            }
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (var file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    //pass 1: records of every non-blank line, routed by the top bits of their hash
+    private static void writePartitions(Path in, Charset charset, MemorySegment data, List<Path> partitions, int bits) throws IOException {
+        var outputs = new ArrayList<DataOutputStream>();
+        Throwable primary = null;
+        try {
+            for (var partition : partitions) {
+                outputs.add(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partition), 16 << 10)));
+            }
+            var filter = new ByteLineFilter(charset);
+            try (var src = FileChannel.open(in, READ)) {
+                MappedLineCopy.filterWindows(src, MappedLineCopy.WINDOW, filter, new MappedLineCopy.WindowSink() {
+                    private long position;
+
+                    @Override
+                    public void window(ByteBuffer map, long position) {
+                        this.position = position;
+                    }
+
+                    @Override
+                    public void endOfWindow() {
+                    }
+
+                    @Override
+                    public boolean accept(int from, int to) {
+                        long offset = position + from;
+                        long hash = OffHeapLineSet.hash(data, offset, to - from);
+                        try {
+                            writeRecord(outputs.get((int) (hash >>> (64 - bits))), hash, offset, to - from);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public void range(int from, int to) {
+                    }
+
+                    @Override
+                    public void bytes(byte[] bytes) {
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (Throwable t) {
+            primary = t;
+            throw t;
+        } finally {
+            closeAll(outputs, primary);
+        }
+    }
+
+    //pass 2: first occurrences of one partition to a new survivors file, sorted by offset since records are in input order
+    private static void dedupe(Path partition, MemorySegment data, long memoryCeiling, int bitsUsed, List<Path> survivors) throws IOException {
+        var survivorFile = partition.resolveSibling(partition.getFileName() + ".survivors");
+        boolean full = false;
+        try (var set = new OffHeapLineSet(data, memoryCeiling);
+             var records = new DataInputStream(new BufferedInputStream(Files.newInputStream(partition), 16 << 10));
+             var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(survivorFile), 16 << 10))) {
+            while (true) {
+                long hash;
+                try {
+                    hash = records.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long offset = records.readLong();
+                int length = records.readInt();
+                int result = set.add(hash, offset, length);
+                if (result == OffHeapLineSet.FULL) {
+                    full = true;
+                    break;
+                }
+                if (result == OffHeapLineSet.ADDED) {
+                    out.writeLong(offset);
+                }
+            }
+        }
+        if (!full) {
+            survivors.add(survivorFile);
+            Files.delete(partition);
+            return;
+        }
+        //too many distinct lines for one table: split by the next hash bits and try again
+        Files.delete(survivorFile);
+        if (bitsUsed + SPLIT_BITS > 64) {
+            throw new IOException("cannot split " + partition + " any further, memory ceiling too low");
+        }
+        var parts = new ArrayList<Path>();
+        for (int p = 0; p < 1 << SPLIT_BITS; p++) {
+            parts.add(partition.resolveSibling(partition.getFileName() + "-" + p));
+        }
+        var outputs = new ArrayList<DataOutputStream>();
+        Throwable primary = null;
+        try (var records = new DataInputStream(new BufferedInputStream(Files.newInputStream(partition), 16 << 10))) {
+            for (var part : parts) {
+                outputs.add(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(part), 16 << 10)));
+            }
+            int shift = 64 - bitsUsed - SPLIT_BITS;
+            int mask = (1 << SPLIT_BITS) - 1;
+            while (true) {
+                long hash;
+                try {
+                    hash = records.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                writeRecord(outputs.get((int) (hash >>> shift) & mask), hash, records.readLong(), records.readInt());
+            }
+        } catch (Throwable t) {
+            primary = t;
+            throw t;
+        } finally {
+            closeAll(outputs, primary);
+        }
+        Files.delete(partition);
+        for (var part : parts) {
+            dedupe(part, data, memoryCeiling, bitsUsed + SPLIT_BITS, survivors);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, long hash, long offset, int length) throws IOException {
+        out.writeLong(hash);
+        out.writeLong(offset);
+        out.writeInt(length);
+    }
+
+    private static void closeAll(List<? extends AutoCloseable> resources, Throwable primary) throws IOException {
+        IOException failure = null;
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            try {
+                resources.get(i).close();
+            } catch (Exception e) {
+                if (primary != null) {
+                    primary.addSuppressed(e);
+                } else if (failure == null) {
+                    failure = e instanceof IOException io ? io : new IOException(e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    //pass 3: the survivor offsets of all partitions in ascending order
+    private static final class SurvivorMerge implements AutoCloseable {
+        private record Head(DataInputStream in, long offset) {}
+
+        private final List<DataInputStream> inputs = new ArrayList<>();
+        private final PriorityQueue<Head> heap = new PriorityQueue<>(Comparator.comparingLong(Head::offset));
+
+        SurvivorMerge(List<Path> files) throws IOException {
+            try {
+                for (var file : files) {
+                    var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 16 << 10));
+                    inputs.add(in);
+                    push(in);
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        //-1 when done
+        long peek() {
+            return heap.isEmpty() ? -1 : heap.peek().offset();
+        }
+
+        void advance() {
+            try {
+                push(heap.poll().in());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void push(DataInputStream in) throws IOException {
+            try {
+                heap.add(new Head(in, in.readLong()));
+            } catch (EOFException e) {
+                //this file is done
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeAll(inputs, null);
+        }
+    }
+
+    private static final class TableFull extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        TableFull() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package async_programming.part1_basics;
 
+import async_programming.part3_threadpool.ExecutorRegistry;
 import org.junit.jupiter.api.Test;
 
 import java.time.Duration;
@@ -8,26 +9,32 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Supplier;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 class Part1Test {
 
     @Test
     public void test_future_do_work_during_execution() throws ExecutionException, InterruptedException {
         System.out.println("----1");
-        ExecutorService executor = Executors.newFixedThreadPool(1);
-        System.out.println("----2 before future execution");
-        Future<Integer> future = executor.submit(() -> {
-            System.out.println("-thread---start");
-            Thread.sleep(5);
-            System.out.println("-thread---end");
-            return 42;
-        });
-        System.out.println("----3 after future execution");
-        while (!future.isDone()) {
-            System.out.println("----4:block main thread during execution");
-            Thread.sleep(1);
+        try (var executors = new ExecutorRegistry()) {
+            ExecutorService executor = executors.fixed("work", 1);
+            System.out.println("----2 before future execution");
+            Future<Integer> future = executor.submit(() -> {
+                System.out.println("-thread---start");
+                Thread.sleep(5);
+                System.out.println("-thread---end");
+                return 42;
+            });
+            System.out.println("----3 after future execution");
+            while (!future.isDone()) {
+                System.out.println("----4:block main thread during execution");
+                Thread.sleep(1);
+            }
+            System.out.println("----5:future returned "+future.get());
+            System.out.println(executors.metrics());
         }
-        System.out.println("----5:future returned "+future.get());
-
     }
 
     static Runnable  prepare_runnable(String name, Integer weight, List<Result> accumulator) {
@@ -107,25 +114,28 @@ class Part1Test {
     public void test_runnables_in_executor() throws InterruptedException, ExecutionException {
         List<Result> accumulator = Collections.synchronizedList(new ArrayList<>());
         Runnable task =  prepare_runnable("c1",1111,accumulator);
-        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var executors = new ExecutorRegistry()) {
+            ExecutorService executor = executors.fixed("runnables", 4);
 
-        Instant start = Instant.now();
-        System.out.println("---start");
+            Instant start = Instant.now();
+            System.out.println("---start");
 
-        Future ft = executor.submit(task);
-        System.out.println("---"+ft.state());
-        while (!ft.isDone()) {
+            Future ft = executor.submit(task);
             System.out.println("---"+ft.state());
-            Thread.sleep(1);
-        }
+            while (!ft.isDone()) {
+                System.out.println("---"+ft.state());
+                Thread.sleep(1);
+            }
 
 
-        Result res = accumulator.stream()
-                .max(Comparator.comparing(Result::weight))
-                .orElseThrow();
+            Result res = accumulator.stream()
+                    .max(Comparator.comparing(Result::weight))
+                    .orElseThrow();
 
-        Instant finish = Instant.now();
-        System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            Instant finish = Instant.now();
+            System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            System.out.println(executors.metrics());
+        }
     }
 
 
@@ -185,33 +195,35 @@ class Part1Test {
                 prepare_callable("c4",1)
         );
 
-        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var executors = new ExecutorRegistry()) {
+            ExecutorService executor = executors.fixed("callables", 4);
 
-        Instant start = Instant.now();
-        System.out.println("---start");
-
-        List<Future<Result>> futures = new ArrayList<>();
-        for (Callable<Result> callable : tasks) {
-            Future<Result> future = executor.submit(callable);
-            System.out.println("created "  + future);
-            futures.add(future);
-        }
+            Instant start = Instant.now();
+            System.out.println("---start");
 
-        List<Result> results = new ArrayList<>();
-        for (Future<Result> future : futures) {
-            System.out.println("---waiting"+future);
-            Result result = future.get();
-            System.out.println("---got"+future);
-            results.add(result);
-        }
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Callable<Result> callable : tasks) {
+                Future<Result> future = executor.submit(callable);
+                System.out.println("created "  + future);
+                futures.add(future);
+            }
 
-        Result res = results.stream()
-                .max(Comparator.comparing(Result::weight))
-                .orElseThrow();
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                System.out.println("---waiting"+future);
+                Result result = future.get();
+                System.out.println("---got"+future);
+                results.add(result);
+            }
 
-        Instant finish = Instant.now();
-        System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            Result res = results.stream()
+                    .max(Comparator.comparing(Result::weight))
+                    .orElseThrow();
 
+            Instant finish = Instant.now();
+            System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            System.out.println(executors.metrics());
+        }
     }
 
 
@@ -226,28 +238,131 @@ class Part1Test {
                 prepare_callable("c4",1)
         );
 
-        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var executors = new ExecutorRegistry()) {
+            ExecutorService executor = executors.fixed("invoke-all", 4);
+
+            Instant start = Instant.now();
+            System.out.println("---start");
 
+            List<Future<Result>> futures = executor.invokeAll(tasks);
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                System.out.println("---waiting"+future);
+                Result result = future.get();
+                System.out.println("---got"+future);
+                results.add(result);
+            }
+
+            Result res = results.stream()
+                    .max(Comparator.comparing(Result::weight))
+                    .orElseThrow();
+
+            Instant finish = Instant.now();
+            System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            System.out.println(executors.metrics());
+        }
+    }
+
+    static Callable<Result> prepare_failing(String name) {
+        return () -> {
+            System.out.println("-callable:"+name+":fails");
+            throw new IllegalStateException("name:"+name+":failed");
+        };
+    }
+
+    //stands in for a hung call: returns only when interrupted
+    static Callable<Result> prepare_hanging(String name, CountDownLatch interrupted) {
+        return () -> {
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                System.out.println("-callable:"+name+":cancelled");
+                interrupted.countDown();
+                throw e;
+            }
+            return new Result("name:"+name+":too late", 0);
+        };
+    }
+
+    @Test
+    public void test_task_group_fan_out() throws Exception {
         Instant start = Instant.now();
-        System.out.println("---start");
 
-        List<Future<Result>> futures = executor.invokeAll(tasks);
+        //all-success: the same fan-out as invoke_all, but no task outlives the group
+        try (var group = TaskGroup.<Result>open(TaskGroup.Policy.ALL_SUCCESS, Duration.ofSeconds(10))) {
+            group.fork(prepare_callable("c1",1111));
+            group.fork(prepare_callable("c2",111));
+            group.fork(prepare_callable("c3",11));
+            group.fork(() -> {
+                assertTrue(Thread.currentThread().isVirtual());
+                return prepare_callable("c4",1).call();
+            });
+            Result res = group.join().results().stream()
+                    .max(Comparator.comparing(Result::weight))
+                    .orElseThrow();
+            assertEquals(1111, res.weight());
+        }
 
-        List<Result> results = new ArrayList<>();
-        for (Future<Result> future : futures) {
-            System.out.println("---waiting"+future);
-            Result result = future.get();
-            System.out.println("---got"+future);
-            results.add(result);
+        //all-success: one failure cancels the hung sibling instead of waiting for it
+        var interrupted = new CountDownLatch(2);
+        try (var group = TaskGroup.<Result>open(TaskGroup.Policy.ALL_SUCCESS, Duration.ofSeconds(10))) {
+            var hung = group.fork(prepare_hanging("h1", interrupted));
+            group.fork(prepare_failing("f1"));
+            var e = assertThrows(ExecutionException.class, () -> group.join().results());
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals(TaskGroup.Subtask.State.CANCELLED, hung.state());
         }
 
-        Result res = results.stream()
-                .max(Comparator.comparing(Result::weight))
-                .orElseThrow();
+        //first-success: failures are skipped, the first result cancels the rest
+        try (var group = TaskGroup.<Result>open(TaskGroup.Policy.FIRST_SUCCESS, Duration.ofSeconds(10))) {
+            group.fork(prepare_failing("f2"));
+            group.fork(prepare_hanging("h2", interrupted));
+            group.fork(prepare_callable("c5",5));
+            assertEquals(5, group.join().firstResult().weight());
+        }
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "hung tasks interrupted");
+
+        //collect-all: the deadline ends the wait, every task says how it ended
+        try (var group = TaskGroup.<Result>open(TaskGroup.Policy.COLLECT_ALL, Duration.ofMillis(200))) {
+            group.fork(prepare_callable("c6",6));
+            group.fork(prepare_failing("f3"));
+            group.fork(prepare_hanging("h3", new CountDownLatch(1)));
+            var states = group.join().subtasks().stream().map(TaskGroup.Subtask::state).toList();
+            assertEquals(List.of(TaskGroup.Subtask.State.SUCCESS, TaskGroup.Subtask.State.FAILED, TaskGroup.Subtask.State.CANCELLED), states);
+        }
 
-        Instant finish = Instant.now();
-        System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+        //the deadline propagates: a group opened in a task cannot outlast the one running it
+        try (var group = TaskGroup.<Duration>open(TaskGroup.Policy.ALL_SUCCESS, Duration.ofSeconds(2))) {
+            group.fork(() -> {
+                try (var nested = TaskGroup.<Result>open(TaskGroup.Policy.ALL_SUCCESS, Duration.ofMinutes(1))) {
+                    assertTrue(TaskGroup.timeLeft().orElseThrow().compareTo(Duration.ofSeconds(2)) <= 0);
+                    return nested.remaining();
+                }
+            });
+            assertTrue(group.join().results().getFirst().compareTo(Duration.ofSeconds(2)) <= 0);
+        }
+        assertTrue(TaskGroup.timeLeft().isEmpty());
+
+        //an interrupted join() cancels the tasks, asking for the outcome then says so
+        for (var policy : List.of(TaskGroup.Policy.ALL_SUCCESS, TaskGroup.Policy.FIRST_SUCCESS)) {
+            try (var group = TaskGroup.<Result>open(policy, Duration.ofSeconds(10))) {
+                var hung = group.fork(prepare_hanging("h4", new CountDownLatch(1)));
+                Thread.currentThread().interrupt();
+                assertThrows(InterruptedException.class, group::join);
+                assertEquals(TaskGroup.Subtask.State.CANCELLED, hung.state());
+                if (policy == TaskGroup.Policy.ALL_SUCCESS) {
+                    assertThrows(CancellationException.class, group::results);
+                } else {
+                    assertThrows(CancellationException.class, group::firstResult);
+                }
+            }
+        }
 
+        //the hung tasks did not hold the test for their 60s
+        Instant finish = Instant.now();
+        System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms");
+        assertTrue(Duration.between(start, finish).compareTo(Duration.ofSeconds(30)) < 0);
     }
 
     static Supplier<Result> prepare_supplier(String name, Integer weight) {
@@ -278,31 +393,32 @@ class Part1Test {
 
 
 
-        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var executors = new ExecutorRegistry()) {
+            ExecutorService executor = executors.fixed("suppliers", 4);
 
-        Instant start = Instant.now();
-        System.out.println("---start");
+            Instant start = Instant.now();
+            System.out.println("---start");
 
-        List<CompletableFuture<Result>> futures = new ArrayList<>();
-        for (Supplier<Result> supplierTask : tasks) {
-            CompletableFuture<Result> completableFuture =  CompletableFuture.supplyAsync(supplierTask);
-            futures.add(completableFuture);
-        }
-
-        List<Result> results = new ArrayList<>();
-        for (CompletableFuture<Result> future : futures) {
-            Result result = future.join();
-            results.add(result);
-        }
-
-        Result res = results.stream()
-                .max(Comparator.comparing(Result::weight))
-                .orElseThrow();
+            List<CompletableFuture<Result>> futures = new ArrayList<>();
+            for (Supplier<Result> supplierTask : tasks) {
+                CompletableFuture<Result> completableFuture =  CompletableFuture.supplyAsync(supplierTask, executor);
+                futures.add(completableFuture);
+            }
 
-        Instant finish = Instant.now();
-        System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            List<Result> results = new ArrayList<>();
+            for (CompletableFuture<Result> future : futures) {
+                Result result = future.join();
+                results.add(result);
+            }
 
+            Result res = results.stream()
+                    .max(Comparator.comparing(Result::weight))
+                    .orElseThrow();
 
+            Instant finish = Instant.now();
+            System.out.println("---end in:"+ Duration.between(start, finish).toMillis() +"ms result:" + res);
+            System.out.println(executors.metrics());
+        }
     }
 
 
@@ -0,0 +1,315 @@
+package async_programming.part1_basics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+//structured fan-out/fan-in: forked tasks run on their own (virtual by default) threads and never outlive the group
+//join() returns as soon as the policy is decided or the deadline passes - whichever is first - and interrupts the tasks
+//still running, so a slow or failed task stops holding a thread; close() waits until they are all gone
+//  ALL_SUCCESS    every task has to succeed: the first failure cancels the rest, results() in fork order
+//  FIRST_SUCCESS  the first result wins and cancels the rest, firstResult() fails only if every task failed
+//  COLLECT_ALL    waits for every task or the deadline, subtasks() tells what became of each
+//the deadline is inherited: a group opened inside a task ends no later than the group running that task
+final class TaskGroup<T> implements AutoCloseable {
+
+    enum Policy { ALL_SUCCESS, FIRST_SUCCESS, COLLECT_ALL }
+
+    //the deadline of the group running this thread, System.nanoTime() based
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private final Policy policy;
+    private final long deadline;
+    private final ThreadFactory threadFactory;
+    private final Thread owner = Thread.currentThread();
+    private final List<Task> tasks = new ArrayList<>();
+    private int running;
+    private boolean decided;
+    private boolean joined;
+    private boolean timedOut;
+    private boolean interrupted;
+    private Task failure;
+    private Task winner;
+
+    private TaskGroup(Policy policy, Duration timeout, ThreadFactory threadFactory) {
+        this.policy = policy;
+        long own = System.nanoTime() + Math.min(timeout.toNanos(), Long.MAX_VALUE / 4);
+        Long inherited = DEADLINE.get();
+        this.deadline = inherited == null || own - inherited < 0 ? own : inherited;
+        this.threadFactory = threadFactory;
+    }
+
+    static <T> TaskGroup<T> open(Policy policy, Duration timeout) {
+        return open(policy, timeout, Thread.ofVirtual().name("task-group-", 0).factory());
+    }
+
+    static <T> TaskGroup<T> open(Policy policy, Duration timeout, ThreadFactory threadFactory) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        return new TaskGroup<>(policy, timeout, threadFactory);
+    }
+
+    //time left for the group running this thread, empty outside of a group; for timeouts of blocking calls in a task
+    static Optional<Duration> timeLeft() {
+        Long inherited = DEADLINE.get();
+        return inherited == null ? Optional.empty() : Optional.of(Duration.ofNanos(Math.max(0, inherited - System.nanoTime())));
+    }
+
+    Duration remaining() {
+        return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+    }
+
+    Subtask<T> fork(Callable<? extends T> callable) {
+        checkOwner();
+        var task = new Task(callable);
+        synchronized (this) {
+            if (joined) {
+                throw new IllegalStateException("group already joined");
+            }
+            tasks.add(task);
+            if (decided) {
+                task.state = Subtask.State.CANCELLED; //the outcome is known, no point in starting it
+                return task;
+            }
+            running++;
+            task.thread = threadFactory.newThread(task); //in the lock: a sibling failing right now has to see it
+        }
+        task.thread.start();
+        return task;
+    }
+
+    //waits until the policy is decided, every task is done or the deadline passed, then cancels what still runs
+    TaskGroup<T> join() throws InterruptedException {
+        checkOwner();
+        synchronized (this) {
+            try {
+                while (!decided && running > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        timedOut = true;
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            } finally {
+                joined = true;
+                cancelRunning();
+            }
+        }
+        return this;
+    }
+
+    //ALL_SUCCESS: every result in fork order; CancellationException if join() was interrupted before the outcome
+    List<T> results() throws ExecutionException, TimeoutException {
+        checkJoined(Policy.ALL_SUCCESS);
+        if (failure != null) {
+            throw new ExecutionException(failure.exception);
+        }
+        if (timedOut) {
+            throw timeout();
+        }
+        if (interrupted) {
+            throw cancelled();
+        }
+        return tasks.stream().map(Task::get).toList();
+    }
+
+    //FIRST_SUCCESS: the result of the first task to succeed; CancellationException as for results()
+    T firstResult() throws ExecutionException, TimeoutException {
+        checkJoined(Policy.FIRST_SUCCESS);
+        if (winner != null) {
+            return winner.result;
+        }
+        if (timedOut) {
+            throw timeout();
+        }
+        if (interrupted) {
+            throw cancelled();
+        }
+        if (tasks.isEmpty()) {
+            throw new NoSuchElementException("no task forked");
+        }
+        ExecutionException all = null;
+        for (var task : tasks) {
+            if (task.state == Subtask.State.FAILED) {
+                if (all == null) {
+                    all = new ExecutionException(task.exception);
+                } else {
+                    all.addSuppressed(task.exception);
+                }
+            }
+        }
+        throw all;
+    }
+
+    //any policy: every forked task, cancelled ones included
+    synchronized List<Subtask<T>> subtasks() {
+        return List.copyOf(tasks);
+    }
+
+    //cancels what is left if join() was skipped and waits for every task thread to end
+    @Override
+    public void close() {
+        checkOwner();
+        List<Task> all;
+        synchronized (this) {
+            decided = true;
+            cancelRunning();
+            all = List.copyOf(tasks);
+        }
+        boolean interrupted = false;
+        for (var task : all) {
+            while (task.thread != null) {
+                try {
+                    task.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TimeoutException timeout() {
+        long unfinished = tasks.stream().filter(t -> t.state == Subtask.State.CANCELLED).count();
+        return new TimeoutException("deadline passed with " + unfinished + " of " + tasks.size() + " tasks unfinished");
+    }
+
+    private CancellationException cancelled() {
+        long unfinished = tasks.stream().filter(t -> t.state == Subtask.State.CANCELLED).count();
+        return new CancellationException("join() interrupted with " + unfinished + " of " + tasks.size() + " tasks unfinished");
+    }
+
+    private synchronized void checkJoined(Policy expected) {
+        if (policy != expected) {
+            throw new IllegalStateException("not available for " + policy);
+        }
+        if (!joined) {
+            throw new IllegalStateException("join() first");
+        }
+    }
+
+    private void checkOwner() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("only the thread that opened the group may use it");
+        }
+    }
+
+    //holding the lock
+    private void cancelRunning() {
+        for (var task : tasks) {
+            if (task.state == Subtask.State.RUNNING) {
+                task.state = Subtask.State.CANCELLED;
+                task.thread.interrupt();
+            }
+        }
+    }
+
+    //runs on the task thread
+    private synchronized void completed(Task task, T result, Throwable exception) {
+        running--;
+        notifyAll();
+        if (task.state == Subtask.State.CANCELLED) {
+            return; //too late, whatever it produced
+        }
+        if (exception == null) {
+            task.state = Subtask.State.SUCCESS;
+            task.result = result;
+            if (policy == Policy.FIRST_SUCCESS && winner == null) {
+                winner = task;
+                decided = true;
+            }
+        } else {
+            task.state = Subtask.State.FAILED;
+            task.exception = exception;
+            if (policy == Policy.ALL_SUCCESS && failure == null) {
+                failure = task;
+                decided = true;
+            }
+        }
+        if (decided) {
+            cancelRunning();
+        }
+    }
+
+    interface Subtask<T> {
+        enum State { RUNNING, SUCCESS, FAILED, CANCELLED }
+
+        State state();
+
+        //the result, SUCCESS only
+        T get();
+
+        //what the task threw, FAILED only
+        Throwable exception();
+    }
+
+    private final class Task implements Subtask<T>, Runnable {
+        private final Callable<? extends T> callable;
+        private Thread thread;
+        private State state = State.RUNNING;
+        private T result;
+        private Throwable exception;
+
+        Task(Callable<? extends T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public void run() {
+            DEADLINE.set(deadline);
+            T value = null;
+            Throwable thrown = null;
+            if (state() == State.RUNNING) { //cancelled before it even started otherwise
+                try {
+                    value = callable.call();
+                } catch (Throwable t) {
+                    thrown = t;
+                }
+            }
+            completed(this, value, thrown);
+        }
+
+        @Override
+        public State state() {
+            synchronized (TaskGroup.this) {
+                return state;
+            }
+        }
+
+        @Override
+        public T get() {
+            synchronized (TaskGroup.this) {
+                if (state != State.SUCCESS) {
+                    throw new IllegalStateException("no result, task is " + state);
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public Throwable exception() {
+            synchronized (TaskGroup.this) {
+                if (state != State.FAILED) {
+                    throw new IllegalStateException("no exception, task is " + state);
+                }
+                return exception;
+            }
+        }
+    }
+}
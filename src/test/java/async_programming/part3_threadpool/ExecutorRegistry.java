@@ -0,0 +1,186 @@
+package async_programming.part3_threadpool;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//owns named thread pools for their whole life, instead of Executors.newFixedThreadPool(..) left running after use
+//close() shuts every pool down gracefully: no new tasks, queued and running ones get drainTimeout to finish,
+//then whatever is left is interrupted and the Futures of tasks that never started are cancelled
+//each pool reports queue depth, active threads, completed tasks, rejections and wait/run latency, to size it from data
+public final class ExecutorRegistry implements AutoCloseable {
+
+    public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Duration drainTimeout;
+    private final Map<String, ManagedThreadPool> pools = new LinkedHashMap<>();
+    private boolean closed;
+
+    public ExecutorRegistry() {
+        this(DEFAULT_DRAIN_TIMEOUT);
+    }
+
+    public ExecutorRegistry(Duration drainTimeout) {
+        if (drainTimeout.isNegative()) {
+            throw new IllegalArgumentException("drainTimeout must not be negative: " + drainTimeout);
+        }
+        this.drainTimeout = drainTimeout;
+    }
+
+    //threads fixed, queue unbounded: what Executors.newFixedThreadPool(threads) gives, registered under name
+    public ExecutorService fixed(String name, int threads) {
+        return register(name, threads, new LinkedBlockingQueue<>());
+    }
+
+    //at most queueCapacity tasks wait, more are rejected and counted
+    public ExecutorService bounded(String name, int threads, int queueCapacity) {
+        return register(name, threads, new ArrayBlockingQueue<>(queueCapacity));
+    }
+
+    private synchronized ExecutorService register(String name, int threads, BlockingQueue<Runnable> queue) {
+        if (closed) {
+            throw new IllegalStateException("registry is closed");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (pools.containsKey(name)) {
+            throw new IllegalArgumentException("pool " + name + " already registered");
+        }
+        var pool = new ManagedThreadPool(name, threads, queue);
+        pools.put(name, pool);
+        return pool;
+    }
+
+    public synchronized ExecutorService get(String name) {
+        var pool = pools.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("no pool " + name);
+        }
+        return pool;
+    }
+
+    public synchronized PoolMetrics metrics(String name) {
+        return ((ManagedThreadPool) get(name)).metrics();
+    }
+
+    //all pools, in registration order
+    public synchronized List<PoolMetrics> metrics() {
+        return pools.values().stream().map(ManagedThreadPool::metrics).toList();
+    }
+
+    //shuts one pool down and removes it, same drain as close(); false if it had to be interrupted
+    public boolean shutdown(String name) throws InterruptedException {
+        ManagedThreadPool pool;
+        synchronized (this) {
+            pool = (ManagedThreadPool) get(name);
+            pools.remove(name);
+        }
+        return drain(List.of(pool)).isEmpty();
+    }
+
+    //shuts every pool down, all draining at once within one drainTimeout; returns the pools that had to be interrupted
+    public List<String> shutdownAll() {
+        List<ManagedThreadPool> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(pools.values());
+        }
+        try {
+            return drain(all);
+        } catch (InterruptedException e) {
+            all.forEach(ExecutorRegistry::forceShutdown);
+            Thread.currentThread().interrupt();
+            return all.stream().map(ManagedThreadPool::name).toList();
+        }
+    }
+
+    private List<String> drain(List<ManagedThreadPool> all) throws InterruptedException {
+        all.forEach(ExecutorService::shutdown);
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        var forced = new ArrayList<String>();
+        for (var pool : all) {
+            if (!pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                forceShutdown(pool);
+                forced.add(pool.name());
+            }
+        }
+        return forced;
+    }
+
+    //interrupts the running tasks; the queued ones will never run, so whoever waits on their Future gets a
+    //CancellationException instead of waiting forever
+    private static void forceShutdown(ManagedThreadPool pool) {
+        for (var task : pool.shutdownNow()) {
+            if (task instanceof Future<?> future) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdownAll();
+    }
+
+    //a pool at one moment; counts are read one by one, so under load they may not add up exactly
+    public record PoolMetrics(String name, int poolSize, int activeThreads, int queueDepth,
+                              long completedTasks, long rejectedTasks, Latency waitTime, Latency runTime) {
+        @Override
+        public String toString() {
+            return name + ": threads " + activeThreads + "/" + poolSize + " active, queue " + queueDepth
+                    + ", completed " + completedTasks + ", rejected " + rejectedTasks
+                    + ", wait " + waitTime + ", run " + runTime;
+        }
+    }
+
+    //task durations in power-of-two buckets: buckets[i] counts [2^i, 2^(i+1)) ns
+    //a snapshot: the array is copied in and out, so nobody can change it after the fact
+    public record Latency(long[] buckets) {
+        public Latency {
+            buckets = buckets.clone();
+        }
+
+        @Override
+        public long[] buckets() {
+            return buckets.clone();
+        }
+
+        public long count() {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        //upper bound of the duration q of the tasks stayed under, 0 < q <= 1; zero if nothing was recorded
+        public Duration percentile(double q) {
+            if (q <= 0 || q > 1) {
+                throw new IllegalArgumentException("percentile must be in (0, 1]: " + q);
+            }
+            long rank = (long) Math.ceil(q * count());
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (rank > 0 && seen >= rank) {
+                    return Duration.ofNanos(i >= 62 ? Long.MAX_VALUE : 1L << (i + 1));
+                }
+            }
+            return Duration.ZERO;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count() + " p50<" + percentile(0.5).toNanos() / 1000 + "us p99<" + percentile(0.99).toNanos() / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package async_programming.part3_threadpool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//lock-free histogram of durations in power-of-two nanosecond buckets: bucket i counts [2^i, 2^(i+1)) ns, bucket 0 also 0
+//recording is one array increment, cheap enough for every task; percentiles come out as the bucket's upper bound
+final class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    //a consistent enough copy: concurrent records may or may not be in it
+    ExecutorRegistry.Latency snapshot() {
+        var copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new ExecutorRegistry.Latency(copy);
+    }
+}
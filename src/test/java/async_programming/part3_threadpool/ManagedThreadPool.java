@@ -0,0 +1,86 @@
+package async_programming.part3_threadpool;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//ThreadPoolExecutor that measures itself: every task is stamped when queued, so the worker can record how long it
+//waited and how long it ran; rejections are counted before the usual RejectedExecutionException
+final class ManagedThreadPool extends ThreadPoolExecutor {
+
+    private final String name;
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+
+    ManagedThreadPool(String name, int threads, BlockingQueue<Runnable> queue) {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, queue, threadFactory(name));
+        this.name = name;
+        setRejectedExecutionHandler((task, pool) -> {
+            rejected.increment();
+            throw new RejectedExecutionException("pool " + name + " rejected a task: "
+                    + (pool.isShutdown() ? "shut down" : "queue full at " + pool.getQueue().size()));
+        });
+    }
+
+    //threads named after the pool, so a thread dump tells whose they are
+    private static ThreadFactory threadFactory(String name) {
+        var count = new AtomicInteger();
+        return task -> new Thread(task, name + "-" + count.incrementAndGet());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new Timed(command, System.nanoTime()));
+    }
+
+    //the tasks as they were given to execute(), not the Timed wrappers: submit()'s Futures stay Futures to cancel
+    @Override
+    public List<Runnable> shutdownNow() {
+        return super.shutdownNow().stream().map(r -> r instanceof Timed timed ? timed.task() : r).toList();
+    }
+
+    String name() {
+        return name;
+    }
+
+    ExecutorRegistry.PoolMetrics metrics() {
+        return new ExecutorRegistry.PoolMetrics(name, getPoolSize(), getActiveCount(), getQueue().size(),
+                getCompletedTaskCount(), rejected.sum(), waitTime.snapshot(), runTime.snapshot());
+    }
+
+    private final class Timed implements Runnable {
+        private final Runnable task;
+        private final long queued;
+
+        Timed(Runnable task, long queued) {
+            this.task = task;
+            this.queued = queued;
+        }
+
+        Runnable task() {
+            return task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waitTime.record(start - queued);
+            try {
+                task.run();
+            } finally {
+                runTime.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -3,14 +3,25 @@ package async_programming.part3_threadpool;
 import org.junit.jupiter.api.Test;
 
 import javax.swing.*;
+import java.time.Duration;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class Part3Test {
 
 
@@ -40,22 +51,96 @@ public class Part3Test {
         var onDefault = quoteFuture.thenApply(convert);
 
 
-        //async moves to another
-        Executor customExecutor1 = Executors.newFixedThreadPool(3);
-        var onCustom1 = onDefault.thenApplyAsync(convert, customExecutor1);
+        //pools are owned by the registry and shut down with it, the virtual thread executor closes itself
+        try (var executors = new ExecutorRegistry(); var virtualExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            //async moves to another
+            Executor customExecutor1 = executors.fixed("custom1", 3);
+            var onCustom1 = onDefault.thenApplyAsync(convert, customExecutor1);
 
-        //async again moves to another
-        Executor customExecutor2 = Executors.newVirtualThreadPerTaskExecutor();
-        var onCustom2 = onCustom1.thenApplyAsync(convert, customExecutor2);
+            //async again moves to another
+            Executor customExecutor2 = virtualExecutor;
+            var onCustom2 = onCustom1.thenApplyAsync(convert, customExecutor2);
 
-        //async Executor back to default
-        var onCustom3 = onCustom2.thenApplyAsync(convert, ForkJoinPool.commonPool());
+            //async Executor back to default
+            var onCustom3 = onCustom2.thenApplyAsync(convert, ForkJoinPool.commonPool());
 
-        //on Swing single thread!!!
-        var onSwing = onCustom3.thenApplyAsync(convert, SwingUtilities::invokeLater);  //AWT-EventQueue-0
+            //on Swing single thread!!!
+            var onSwing = onCustom3.thenApplyAsync(convert, SwingUtilities::invokeLater);  //AWT-EventQueue-0
 
-        onSwing.join();
+            onSwing.join();
+            System.out.println(executors.metrics());
+        }
+
+    }
+
+    @Test
+    void test_executor_registry() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Callable<String> blocking = () -> {
+            started.countDown();
+            release.await();
+            return Thread.currentThread().getName();
+        };
 
+        try (var executors = new ExecutorRegistry(Duration.ofMillis(100))) {
+            var quotes = executors.bounded("quotes", 1, 1);
+            var first = quotes.submit(blocking);
+            started.await();
+            var queued = quotes.submit(() -> "queued");
+            assertThrows(RejectedExecutionException.class, () -> quotes.submit(() -> "rejected"));
+
+            var busy = executors.metrics("quotes");
+            assertEquals(1, busy.activeThreads());
+            assertEquals(1, busy.queueDepth());
+            assertEquals(1, busy.rejectedTasks());
+            assertThrows(IllegalArgumentException.class, () -> executors.fixed("quotes", 2));
+
+            release.countDown();
+            assertEquals("quotes-1", first.get());
+            assertEquals("queued", queued.get());
+            assertTrue(executors.shutdown("quotes"), "drained in time");
+            assertTrue(executors.metrics().isEmpty(), "shut down pools leave the registry");
+
+            //wait and run times of every task, the queued one waited for the first to finish
+            var pool = executors.fixed("timed", 2);
+            for (int i = 0; i < 20; i++) {
+                pool.submit(() -> {
+                    Thread.sleep(1);
+                    return null;
+                });
+            }
+            pool.submit(() -> null).get();
+            var timed = executors.metrics("timed");
+            System.out.println(timed);
+            assertTrue(timed.runTime().percentile(0.5).compareTo(Duration.ofMillis(1)) >= 0, "slept at least 1ms");
+            var copied = new long[LatencyHistogram.BUCKETS];
+            copied[0] = 5;
+            var latency = new ExecutorRegistry.Latency(copied);
+            copied[0] = 0;
+            latency.buckets()[0] = 0;
+            assertEquals(5L, latency.count(), "a snapshot cannot be changed through its array");
+
+            //a task that outlives the drain timeout is interrupted on close, the one queued behind it is cancelled
+            var interrupted = new CountDownLatch(1);
+            var stuck = executors.fixed("stuck", 1);
+            stuck.submit(() -> {
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            });
+            var neverRun = stuck.submit(() -> "never");
+            assertEquals(List.of("stuck"), executors.shutdownAll());
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            assertThrows(CancellationException.class, neverRun::get);
+            assertTrue(executors.get("timed").isTerminated());
+            assertEquals(21, executors.metrics("timed").completedTasks());
+            assertEquals(21, executors.metrics("timed").waitTime().count());
+            assertThrows(IllegalStateException.class, () -> executors.fixed("late", 1));
+        }
     }
 
 }
@@ -0,0 +1,235 @@
+package async_programming.part5_lambdas;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+//one traversal of the source, every consumer sees every element in order
+//inline consumers run on the caller thread, async ones on their own thread behind a bounded queue (backpressure)
+public final class Broadcast<T> {
+
+    private static final int BATCH_SIZE = 256;
+    private static final Object[] END = new Object[0];
+
+    private final List<Consumer<? super T>> inline = new ArrayList<>();
+    private final List<Consumer<? super T>> async = new ArrayList<>();
+    private int queuedBatches = 16;
+    private ThreadFactory threadFactory = Thread.ofPlatform().daemon().name("broadcast-", 0).factory();
+
+    public static <T> Broadcast<T> create() {
+        return new Broadcast<>();
+    }
+
+    public Broadcast<T> to(Consumer<? super T> consumer) {
+        inline.add(Objects.requireNonNull(consumer));
+        return this;
+    }
+
+    public Broadcast<T> toAsync(Consumer<? super T> consumer) {
+        async.add(Objects.requireNonNull(consumer));
+        return this;
+    }
+
+    //per async consumer, memory is bounded by queuedBatches * 256 references
+    public Broadcast<T> queuedBatches(int queuedBatches) {
+        if (queuedBatches < 1) {
+            throw new IllegalArgumentException("queuedBatches must be positive: " + queuedBatches);
+        }
+        this.queuedBatches = queuedBatches;
+        return this;
+    }
+
+    public Broadcast<T> threadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = Objects.requireNonNull(threadFactory);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void from(Stream<? extends T> source) {
+        try (source) {
+            Iterator<? extends T> iterator = source.sequential().iterator();
+            Iterable<T> once = () -> (Iterator<T>) iterator;
+            from(once);
+        }
+    }
+
+    public void from(Iterable<? extends T> source) {
+        var workers = new ArrayList<Worker<T>>(async.size());
+        for (var consumer : async) {
+            workers.add(new Worker<>(consumer, new ArrayBlockingQueue<>(queuedBatches), threadFactory));
+        }
+        Throwable failure = null;
+        try {
+            var batch = new Object[BATCH_SIZE];
+            int size = 0;
+            for (T element : source) {
+                for (var consumer : inline) {
+                    consumer.accept(element);
+                }
+                if (!workers.isEmpty()) {
+                    batch[size++] = element;
+                    if (size == BATCH_SIZE) {
+                        publish(workers, batch);  //shared read-only between workers
+                        batch = new Object[BATCH_SIZE];
+                        size = 0;
+                    }
+                }
+            }
+            if (size > 0) {
+                publish(workers, Arrays.copyOf(batch, size));
+            }
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            failure = finish(workers, failure);
+        }
+        if (failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure instanceof Error e) {
+            throw e;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure); //a consumer throwing a checked exception sneakily
+        }
+    }
+
+    @SafeVarargs
+    public static <K, V> void forEach(Map<K, V> source, BiConsumer<? super K, ? super V>... consumers) {
+        var broadcast = Broadcast.<Map.Entry<K, V>>create();
+        for (var consumer : consumers) {
+            broadcast.to(entry -> consumer.accept(entry.getKey(), entry.getValue()));
+        }
+        broadcast.from(source.entrySet());
+    }
+
+    //Collectors.teeing for any number of downstream collectors, results in the same order
+    public static <T> Collector<T, ?, List<Object>> teeing(List<? extends Collector<? super T, ?, ?>> collectors) {
+        @SuppressWarnings("unchecked")
+        var all = (List<Collector<T, Object, Object>>) List.copyOf(collectors);
+        return Collector.of(
+                () -> {
+                    var containers = new Object[all.size()];
+                    for (int i = 0; i < containers.length; i++) {
+                        containers[i] = all.get(i).supplier().get();
+                    }
+                    return containers;
+                },
+                (containers, element) -> {
+                    for (int i = 0; i < containers.length; i++) {
+                        all.get(i).accumulator().accept(containers[i], element);
+                    }
+                },
+                (left, right) -> {
+                    for (int i = 0; i < left.length; i++) {
+                        BinaryOperator<Object> combiner = all.get(i).combiner();
+                        left[i] = combiner.apply(left[i], right[i]);
+                    }
+                    return left;
+                },
+                containers -> {
+                    var results = new ArrayList<>(containers.length);
+                    for (int i = 0; i < containers.length; i++) {
+                        Function<Object, Object> finisher = all.get(i).finisher();
+                        results.add(finisher.apply(containers[i]));
+                    }
+                    return Collections.unmodifiableList(results);
+                });
+    }
+
+    private static <T> void publish(List<Worker<T>> workers, Object[] batch) {
+        for (var worker : workers) {
+            worker.offer(batch);
+        }
+    }
+
+    //always waits for every worker, the first failure wins and the rest are suppressed
+    private static <T> Throwable finish(List<Worker<T>> workers, Throwable failure) {
+        for (var worker : workers) {
+            try {
+                worker.offer(END);
+            } catch (Throwable t) {
+                failure = merge(failure, t);
+            }
+        }
+        for (var worker : workers) {
+            var workerFailure = worker.await();
+            if (workerFailure != null) {
+                failure = merge(failure, workerFailure);
+            }
+        }
+        return failure;
+    }
+
+    private static Throwable merge(Throwable failure, Throwable next) {
+        if (failure == null) {
+            return next;
+        }
+        failure.addSuppressed(next);
+        return failure;
+    }
+
+    private static final class Worker<T> {
+
+        private final Consumer<? super T> consumer;
+        private final BlockingQueue<Object[]> queue;
+        private final Thread thread;
+        private volatile Throwable failure;
+
+        Worker(Consumer<? super T> consumer, BlockingQueue<Object[]> queue, ThreadFactory threadFactory) {
+            this.consumer = consumer;
+            this.queue = queue;
+            this.thread = threadFactory.newThread(this::run);
+            this.thread.start();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void run() {
+            try {
+                Object[] batch;
+                while ((batch = queue.take()) != END) {
+                    if (failure != null) {
+                        continue; //keep draining so the producer never blocks on a dead consumer
+                    }
+                    try {
+                        for (var element : batch) {
+                            consumer.accept((T) element);
+                        }
+                    } catch (Throwable t) {
+                        failure = t; //Errors too: the worker has to live on to drain
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = new IllegalStateException("broadcast worker interrupted", e);
+            }
+        }
+
+        void offer(Object[] batch) {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                thread.interrupt();
+                throw new IllegalStateException("interrupted while publishing", e);
+            }
+        }
+
+        Throwable await() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                thread.interrupt();
+                return new IllegalStateException("interrupted while waiting for consumer", e);
+            }
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package async_programming.part5_lambdas;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+//predicate as data: simplify the tree first, then compile it to one primitive predicate (no Integer, no Predicate<T> chain)
+public sealed interface IntCondition {
+
+    enum Op { LT, LE, GT, GE, EQ, NE }
+
+    record Compare(Op op, long value) implements IntCondition {}
+
+    //java % semantics, the same as (test % 2 == 0)
+    record Modulo(long divisor, long remainder) implements IntCondition {
+        public Modulo {
+            if (divisor == 0) {
+                throw new IllegalArgumentException("divisor must not be 0");
+            }
+        }
+    }
+
+    //inclusive, produced by simplify() out of comparisons under the same and
+    record Range(long min, long max) implements IntCondition {}
+
+    record And(List<IntCondition> parts) implements IntCondition {
+        public And {
+            parts = List.copyOf(parts);
+        }
+    }
+
+    record Or(List<IntCondition> parts) implements IntCondition {
+        public Or {
+            parts = List.copyOf(parts);
+        }
+    }
+
+    record Not(IntCondition inner) implements IntCondition {}
+
+    record Constant(boolean value) implements IntCondition {}
+
+    static IntCondition lt(long value) { return new Compare(Op.LT, value); }
+    static IntCondition le(long value) { return new Compare(Op.LE, value); }
+    static IntCondition gt(long value) { return new Compare(Op.GT, value); }
+    static IntCondition ge(long value) { return new Compare(Op.GE, value); }
+    static IntCondition eq(long value) { return new Compare(Op.EQ, value); }
+    static IntCondition ne(long value) { return new Compare(Op.NE, value); }
+    static IntCondition mod(long divisor, long remainder) { return new Modulo(divisor, remainder); }
+    static IntCondition between(long min, long max) { return new Range(min, max); }
+
+    default IntCondition and(IntCondition other) {
+        return new And(List.of(this, other));
+    }
+
+    default IntCondition or(IntCondition other) {
+        return new Or(List.of(this, other));
+    }
+
+    default IntCondition negate() {
+        return new Not(this);
+    }
+
+    //rough probability of being true, used to order and/or operands so they short-circuit early
+    default double selectivity() {
+        return switch (this) {
+            case Constant c -> c.value() ? 1.0 : 0.0;
+            case Compare c -> switch (c.op()) {
+                case EQ -> 0.01;
+                case NE -> 0.99;
+                default -> 0.5;
+            };
+            case Modulo m -> 1.0 / Math.max(2.0, Math.abs((double) m.divisor()));
+            case Range r -> r.min() == r.max() ? 0.01 : 0.25;
+            case Not n -> 1.0 - n.inner().selectivity();
+            case And a -> a.parts().stream().mapToDouble(IntCondition::selectivity).reduce(1.0, (x, y) -> x * y);
+            case Or o -> 1.0 - o.parts().stream().mapToDouble(p -> 1.0 - p.selectivity()).reduce(1.0, (x, y) -> x * y);
+        };
+    }
+
+    //constant folding, flattening, comparison merging and operand reordering
+    default IntCondition simplify() {
+        return switch (this) {
+            case Constant c -> c;
+            case Compare c -> c;
+            case Range r -> r.min() > r.max() ? new Constant(false) : r;
+            case Modulo m -> {
+                long d = Math.abs(m.divisor());
+                if (d == 1) {
+                    yield new Constant(m.remainder() == 0);
+                }
+                //unsigned: Math.abs(Long.MIN_VALUE) stays negative, as unsigned it is the 2^63 it should be
+                yield Long.compareUnsigned(Math.abs(m.remainder()), d) >= 0 ? new Constant(false) : m;
+            }
+            case Not n -> switch (n.inner().simplify()) {
+                case Constant c -> new Constant(!c.value());
+                case Not inner -> inner.inner();
+                case Compare c -> new Compare(switch (c.op()) {
+                    case LT -> Op.GE;
+                    case LE -> Op.GT;
+                    case GT -> Op.LE;
+                    case GE -> Op.LT;
+                    case EQ -> Op.NE;
+                    case NE -> Op.EQ;
+                }, c.value());
+                case IntCondition other -> new Not(other);
+            };
+            case And a -> Simplifier.and(a.parts());
+            case Or o -> Simplifier.or(o.parts());
+        };
+    }
+
+    default IntPredicate compileInt() {
+        return Compiler.toInt(simplify());
+    }
+
+    default LongPredicate compileLong() {
+        return Compiler.toLong(simplify());
+    }
+
+    final class Simplifier {
+
+        private Simplifier() {
+        }
+
+        static IntCondition and(List<IntCondition> parts) {
+            var flat = new ArrayList<IntCondition>();
+            long min = Long.MIN_VALUE, max = Long.MAX_VALUE;
+            boolean bounded = false;
+            for (var part : flatten(parts, true)) {
+                switch (part) {
+                    case Constant c when !c.value() -> {
+                        return c;
+                    }
+                    case Constant _ -> {
+                    }
+                    case Range r -> {
+                        min = Math.max(min, r.min());
+                        max = Math.min(max, r.max());
+                        bounded = true;
+                    }
+                    case Compare c when c.op() != Op.NE -> {
+                        var r = toRange(c);
+                        if (r == null) {
+                            return new Constant(false);
+                        }
+                        min = Math.max(min, r.min());
+                        max = Math.min(max, r.max());
+                        bounded = true;
+                    }
+                    default -> flat.add(part);
+                }
+            }
+            if (bounded) {
+                if (min > max) {
+                    return new Constant(false);
+                }
+                flat.add(new Range(min, max));
+            }
+            if (flat.isEmpty()) {
+                return new Constant(true);
+            }
+            if (flat.size() == 1) {
+                return flat.getFirst();
+            }
+            flat.sort(Comparator.comparingDouble(IntCondition::selectivity)); //most likely to fail first
+            return new And(flat);
+        }
+
+        static IntCondition or(List<IntCondition> parts) {
+            var flat = new ArrayList<IntCondition>();
+            for (var part : flatten(parts, false)) {
+                switch (part) {
+                    case Constant c when c.value() -> {
+                        return c;
+                    }
+                    case Constant _ -> {
+                    }
+                    default -> flat.add(part);
+                }
+            }
+            if (flat.isEmpty()) {
+                return new Constant(false);
+            }
+            if (flat.size() == 1) {
+                return flat.getFirst();
+            }
+            flat.sort(Comparator.comparingDouble(IntCondition::selectivity).reversed()); //most likely to pass first
+            return new Or(flat);
+        }
+
+        private static List<IntCondition> flatten(List<IntCondition> parts, boolean and) {
+            var res = new ArrayList<IntCondition>();
+            for (var part : parts) {
+                var simple = part.simplify();
+                if (and && simple instanceof And(var nested)) {
+                    res.addAll(nested);
+                } else if (!and && simple instanceof Or(var nested)) {
+                    res.addAll(nested);
+                } else {
+                    res.add(simple);
+                }
+            }
+            return res;
+        }
+
+        //null when nothing can match
+        private static Range toRange(Compare c) {
+            long v = c.value();
+            return switch (c.op()) {
+                case LT -> v == Long.MIN_VALUE ? null : new Range(Long.MIN_VALUE, v - 1);
+                case LE -> new Range(Long.MIN_VALUE, v);
+                case GT -> v == Long.MAX_VALUE ? null : new Range(v + 1, Long.MAX_VALUE);
+                case GE -> new Range(v, Long.MAX_VALUE);
+                case EQ -> new Range(v, v);
+                case NE -> throw new IllegalArgumentException("not a range: " + c);
+            };
+        }
+    }
+
+    //one specialized lambda per node shape; leaves capture primitives only
+    final class Compiler {
+
+        private Compiler() {
+        }
+
+        static IntPredicate toInt(IntCondition condition) {
+            return switch (condition) {
+                case Constant c -> c.value() ? _ -> true : _ -> false;
+                case Compare c -> {
+                    long v = c.value();
+                    yield switch (c.op()) {
+                        case LT -> x -> x < v;
+                        case LE -> x -> x <= v;
+                        case GT -> x -> x > v;
+                        case GE -> x -> x >= v;
+                        case EQ -> x -> x == v;
+                        case NE -> x -> x != v;
+                    };
+                }
+                case Modulo m -> {
+                    long d = m.divisor(), r = m.remainder();
+                    if (d > 0 && d <= Integer.MAX_VALUE && (d & (d - 1)) == 0 && r == 0) {
+                        int mask = (int) d - 1;
+                        yield x -> (x & mask) == 0;
+                    }
+                    yield x -> x % d == r;
+                }
+                case Range r -> {
+                    long min = r.min(), span = r.max() - r.min();
+                    yield x -> Long.compareUnsigned(x - min, span) <= 0; //one branch instead of two
+                }
+                case Not n -> toInt(n.inner()).negate();
+                case And a -> {
+                    var ps = a.parts().stream().map(Compiler::toInt).toArray(IntPredicate[]::new);
+                    yield switch (ps.length) {
+                        case 2 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            yield x -> p0.test(x) && p1.test(x);
+                        }
+                        case 3 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            var p2 = ps[2];
+                            yield x -> p0.test(x) && p1.test(x) && p2.test(x);
+                        }
+                        default -> x -> {
+                            for (var p : ps) {
+                                if (!p.test(x)) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        };
+                    };
+                }
+                case Or o -> {
+                    var ps = o.parts().stream().map(Compiler::toInt).toArray(IntPredicate[]::new);
+                    yield switch (ps.length) {
+                        case 2 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            yield x -> p0.test(x) || p1.test(x);
+                        }
+                        case 3 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            var p2 = ps[2];
+                            yield x -> p0.test(x) || p1.test(x) || p2.test(x);
+                        }
+                        default -> x -> {
+                            for (var p : ps) {
+                                if (p.test(x)) {
+                                    return true;
+                                }
+                            }
+                            return false;
+                        };
+                    };
+                }
+            };
+        }
+
+        static LongPredicate toLong(IntCondition condition) {
+            return switch (condition) {
+                case Constant c -> c.value() ? _ -> true : _ -> false;
+                case Compare c -> {
+                    long v = c.value();
+                    yield switch (c.op()) {
+                        case LT -> x -> x < v;
+                        case LE -> x -> x <= v;
+                        case GT -> x -> x > v;
+                        case GE -> x -> x >= v;
+                        case EQ -> x -> x == v;
+                        case NE -> x -> x != v;
+                    };
+                }
+                case Modulo m -> {
+                    long d = m.divisor(), r = m.remainder();
+                    if (d > 0 && (d & (d - 1)) == 0 && r == 0) {
+                        long mask = d - 1;
+                        yield x -> (x & mask) == 0;
+                    }
+                    yield x -> x % d == r;
+                }
+                case Range r -> {
+                    long min = r.min(), span = r.max() - r.min();
+                    yield x -> Long.compareUnsigned(x - min, span) <= 0;
+                }
+                case Not n -> toLong(n.inner()).negate();
+                case And a -> {
+                    var ps = a.parts().stream().map(Compiler::toLong).toArray(LongPredicate[]::new);
+                    yield switch (ps.length) {
+                        case 2 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            yield x -> p0.test(x) && p1.test(x);
+                        }
+                        case 3 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            var p2 = ps[2];
+                            yield x -> p0.test(x) && p1.test(x) && p2.test(x);
+                        }
+                        default -> x -> {
+                            for (var p : ps) {
+                                if (!p.test(x)) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        };
+                    };
+                }
+                case Or o -> {
+                    var ps = o.parts().stream().map(Compiler::toLong).toArray(LongPredicate[]::new);
+                    yield switch (ps.length) {
+                        case 2 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            yield x -> p0.test(x) || p1.test(x);
+                        }
+                        case 3 -> {
+                            var p0 = ps[0];
+                            var p1 = ps[1];
+                            var p2 = ps[2];
+                            yield x -> p0.test(x) || p1.test(x) || p2.test(x);
+                        }
+                        default -> x -> {
+                            for (var p : ps) {
+                                if (p.test(x)) {
+                                    return true;
+                                }
+                            }
+                            return false;
+                        };
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package async_programming.part5_lambdas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongUnaryOperator;
+
+//primitive replacement for Function<Integer,Integer> andThen/compose chains
+//consecutive plus/times steps are folded into one multiply-add: (x + 2) * 3 -> x * 3 + 6
+public final class OperatorPipeline {
+
+    private OperatorPipeline() {
+    }
+
+    public static OfInt ofInt() {
+        return new OfInt(List.of());
+    }
+
+    public static OfLong ofLong() {
+        return new OfLong(List.of());
+    }
+
+    //floating point: (x + a) * b is not exactly x * b + a * b, so only fused on request
+    public static OfDouble ofDouble() {
+        return new OfDouble(List.of(), false);
+    }
+
+    public static OfDouble ofDoubleReassociating() {
+        return new OfDouble(List.of(), true);
+    }
+
+    //int wraps around the same way on both sides, so the fold is exact
+    public static final class OfInt {
+
+        private sealed interface Step {}
+        private record Affine(int mul, int add) implements Step {}
+        private record Opaque(IntUnaryOperator op) implements Step {}
+
+        private final List<Step> steps;
+
+        private OfInt(List<Step> steps) {
+            this.steps = steps;
+        }
+
+        public OfInt plus(int value) {
+            return append(List.of(new Affine(1, value)));
+        }
+
+        public OfInt times(int value) {
+            return append(List.of(new Affine(value, 0)));
+        }
+
+        public OfInt map(IntUnaryOperator op) {
+            return append(List.of(new Opaque(op)));
+        }
+
+        // this, then next
+        public OfInt andThen(OfInt next) {
+            return append(next.steps);
+        }
+
+        // before, then this
+        public OfInt compose(OfInt before) {
+            return before.append(steps);
+        }
+
+        private OfInt append(List<Step> more) {
+            var res = new ArrayList<>(steps);
+            for (var step : more) {
+                if (step instanceof Affine(int m2, int a2) && !res.isEmpty() && res.getLast() instanceof Affine(int m1, int a1)) {
+                    res.set(res.size() - 1, new Affine(m2 * m1, m2 * a1 + a2));
+                } else {
+                    res.add(step);
+                }
+            }
+            return new OfInt(List.copyOf(res));
+        }
+
+        public IntUnaryOperator build() {
+            var ops = steps.stream()
+                    .filter(step -> !(step instanceof Affine(int mul, int add) && mul == 1 && add == 0))
+                    .map(OfInt::toOperator)
+                    .toArray(IntUnaryOperator[]::new);
+            return switch (ops.length) {
+                case 0 -> x -> x;
+                case 1 -> ops[0];
+                case 2 -> {
+                    var first = ops[0];
+                    var second = ops[1];
+                    yield x -> second.applyAsInt(first.applyAsInt(x));
+                }
+                default -> x -> {
+                    for (var op : ops) {
+                        x = op.applyAsInt(x);
+                    }
+                    return x;
+                };
+            };
+        }
+
+        private static IntUnaryOperator toOperator(Step step) {
+            return switch (step) {
+                case Opaque(var op) -> op;
+                case Affine(int mul, int add) when mul == 1 -> x -> x + add;
+                case Affine(int mul, int add) when add == 0 -> x -> x * mul;
+                case Affine(int mul, int add) -> x -> x * mul + add;
+            };
+        }
+
+        //steps left after folding, each one an operator call in build()
+        int stepCount() {
+            return steps.size();
+        }
+
+        @Override
+        public String toString() {
+            return "OfInt" + steps;
+        }
+    }
+
+    public static final class OfLong {
+
+        private sealed interface Step {}
+        private record Affine(long mul, long add) implements Step {}
+        private record Opaque(LongUnaryOperator op) implements Step {}
+
+        private final List<Step> steps;
+
+        private OfLong(List<Step> steps) {
+            this.steps = steps;
+        }
+
+        public OfLong plus(long value) {
+            return append(List.of(new Affine(1, value)));
+        }
+
+        public OfLong times(long value) {
+            return append(List.of(new Affine(value, 0)));
+        }
+
+        public OfLong map(LongUnaryOperator op) {
+            return append(List.of(new Opaque(op)));
+        }
+
+        public OfLong andThen(OfLong next) {
+            return append(next.steps);
+        }
+
+        public OfLong compose(OfLong before) {
+            return before.append(steps);
+        }
+
+        private OfLong append(List<Step> more) {
+            var res = new ArrayList<>(steps);
+            for (var step : more) {
+                if (step instanceof Affine(long m2, long a2) && !res.isEmpty() && res.getLast() instanceof Affine(long m1, long a1)) {
+                    res.set(res.size() - 1, new Affine(m2 * m1, m2 * a1 + a2));
+                } else {
+                    res.add(step);
+                }
+            }
+            return new OfLong(List.copyOf(res));
+        }
+
+        public LongUnaryOperator build() {
+            var ops = steps.stream()
+                    .filter(step -> !(step instanceof Affine(long mul, long add) && mul == 1 && add == 0))
+                    .map(OfLong::toOperator)
+                    .toArray(LongUnaryOperator[]::new);
+            return switch (ops.length) {
+                case 0 -> x -> x;
+                case 1 -> ops[0];
+                case 2 -> {
+                    var first = ops[0];
+                    var second = ops[1];
+                    yield x -> second.applyAsLong(first.applyAsLong(x));
+                }
+                default -> x -> {
+                    for (var op : ops) {
+                        x = op.applyAsLong(x);
+                    }
+                    return x;
+                };
+            };
+        }
+
+        private static LongUnaryOperator toOperator(Step step) {
+            return switch (step) {
+                case Opaque(var op) -> op;
+                case Affine(long mul, long add) when mul == 1 -> x -> x + add;
+                case Affine(long mul, long add) when add == 0 -> x -> x * mul;
+                case Affine(long mul, long add) -> x -> x * mul + add;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "OfLong" + steps;
+        }
+    }
+
+    public static final class OfDouble {
+
+        private sealed interface Step {}
+        private record Affine(double mul, double add) implements Step {}
+        private record Opaque(DoubleUnaryOperator op) implements Step {}
+
+        private final List<Step> steps;
+        private final boolean reassociate;
+
+        private OfDouble(List<Step> steps, boolean reassociate) {
+            this.steps = steps;
+            this.reassociate = reassociate;
+        }
+
+        public OfDouble plus(double value) {
+            return append(List.of(new Affine(1, value)));
+        }
+
+        //x * value + -0.0 is exactly x * value; + 0.0 would turn -0.0 into 0.0
+        public OfDouble times(double value) {
+            return append(List.of(new Affine(value, -0.0)));
+        }
+
+        public OfDouble map(DoubleUnaryOperator op) {
+            return append(List.of(new Opaque(op)));
+        }
+
+        public OfDouble andThen(OfDouble next) {
+            return append(next.steps);
+        }
+
+        public OfDouble compose(OfDouble before) {
+            return before.append(steps);
+        }
+
+        private OfDouble append(List<Step> more) {
+            var res = new ArrayList<>(steps);
+            for (var step : more) {
+                if (reassociate && step instanceof Affine(double m2, double a2)
+                        && !res.isEmpty() && res.getLast() instanceof Affine(double m1, double a1)) {
+                    res.set(res.size() - 1, new Affine(m2 * m1, m2 * a1 + a2));
+                } else {
+                    res.add(step);
+                }
+            }
+            return new OfDouble(List.copyOf(res), reassociate);
+        }
+
+        public DoubleUnaryOperator build() {
+            var ops = steps.stream().map(OfDouble::toOperator).toArray(DoubleUnaryOperator[]::new);
+            return switch (ops.length) {
+                case 0 -> x -> x;
+                case 1 -> ops[0];
+                case 2 -> {
+                    var first = ops[0];
+                    var second = ops[1];
+                    yield x -> second.applyAsDouble(first.applyAsDouble(x));
+                }
+                default -> x -> {
+                    for (var op : ops) {
+                        x = op.applyAsDouble(x);
+                    }
+                    return x;
+                };
+            };
+        }
+
+        //only exact rewrites: adding -0.0 and multiplying by 1 change no value, adding 0.0 does (-0.0 + 0.0 is 0.0)
+        private static DoubleUnaryOperator toOperator(Step step) {
+            return switch (step) {
+                case Opaque(var op) -> op;
+                case Affine(double mul, double add) when isNegativeZero(add) && mul == 1 -> x -> x;
+                case Affine(double mul, double add) when isNegativeZero(add) -> x -> x * mul;
+                case Affine(double mul, double add) when mul == 1 -> x -> x + add;
+                case Affine(double mul, double add) -> x -> x * mul + add;
+            };
+        }
+
+        private static boolean isNegativeZero(double value) {
+            return Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "OfDouble" + steps;
+        }
+    }
+}
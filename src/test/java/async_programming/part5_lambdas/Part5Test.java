@@ -6,8 +6,12 @@ import javax.swing.text.html.Option;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class Part5Test {
@@ -167,6 +171,48 @@ public class Part5Test {
 
     }
 
+    @Test
+    void test_lambda_composition_compiled_predicate() {
+
+        Predicate<Integer> largeEnough = (Integer test) -> test>100;
+        Predicate<Integer> odd = (Integer test) -> test % 2 == 0;
+        Predicate<Integer> notTooLarge = (Integer test) -> test<1000;
+        var boxed = largeEnough.and(notTooLarge.or(odd));
+
+        //the same tree as data, compiled once to an IntPredicate
+        var condition = IntCondition.gt(100).and(IntCondition.lt(1000).or(IntCondition.mod(2, 0)));
+        System.out.println("simplified:" + condition.simplify());
+        IntPredicate compiled = condition.compileInt();
+        LongPredicate compiledLong = condition.compileLong();
+
+        for (int i = -2000; i < 3000; i++) {
+            assertEquals(boxed.test(i), compiled.test(i));
+            assertEquals(boxed.test(i), compiledLong.test(i));
+        }
+
+        assertEquals(
+                IntStream.range(0, 100_000).boxed().filter(boxed).count(),
+                IntStream.range(0, 100_000).filter(compiled).count());
+
+        //folding
+        assertEquals(new IntCondition.Constant(false), IntCondition.gt(10).and(IntCondition.lt(5)).simplify());
+        assertEquals(new IntCondition.Constant(true), IntCondition.mod(1, 0).or(IntCondition.eq(3)).simplify());
+        assertEquals(new IntCondition.Range(11, 20), IntCondition.gt(10).and(IntCondition.le(20)).simplify());
+        assertEquals(IntCondition.ge(5), IntCondition.lt(5).negate().simplify());
+        assertEquals(new IntCondition.Constant(false), IntCondition.gt(Integer.MAX_VALUE).and(IntCondition.lt(Integer.MAX_VALUE)).simplify());
+        var minDivisor = IntCondition.mod(Long.MIN_VALUE, 0);
+        assertEquals(minDivisor, minDivisor.simplify());
+        var minDivisorCompiled = minDivisor.compileLong();
+        assertEquals(List.of(true, true, false), List.of(minDivisorCompiled.test(0), minDivisorCompiled.test(Long.MIN_VALUE), minDivisorCompiled.test(5)));
+        assertEquals(IntCondition.mod(Long.MIN_VALUE, -5), IntCondition.mod(Long.MIN_VALUE, -5).simplify());
+        assertEquals(new IntCondition.Constant(false), IntCondition.mod(Long.MIN_VALUE, Long.MIN_VALUE).simplify());
+        assertEquals(new IntCondition.Constant(false), IntCondition.mod(7, Long.MIN_VALUE).simplify());
+
+        //rarely true operand goes first under and
+        var reordered = (IntCondition.And) IntCondition.ne(7).and(IntCondition.eq(1).or(IntCondition.eq(2)).negate()).and(IntCondition.mod(1000, 3)).simplify();
+        assertEquals(IntCondition.mod(1000, 3), reordered.parts().getFirst());
+    }
+
     @Test
     void test_lambda_composition_chain_functions() throws InterruptedException {
 
@@ -179,6 +225,61 @@ public class Part5Test {
         in.stream().map(plus2.compose(times3)).forEach(System.out::println);  // (x * 3) + 2
     }
 
+    @Test
+    void test_lambda_composition_fused_pipeline() {
+
+        Function<Integer,Integer> plus2 = in -> in + 2;
+        Function<Integer,Integer> times3 = in -> in * 3;
+
+        var plus2Op = OperatorPipeline.ofInt().plus(2);
+        var times3Op = OperatorPipeline.ofInt().times(3);
+
+        var andThen = plus2Op.andThen(times3Op);
+        var compose = plus2Op.compose(times3Op);
+        System.out.println("fused andThen:" + andThen + " compose:" + compose);  // one multiply-add each
+
+        IntUnaryOperator andThenOp = andThen.build();
+        IntUnaryOperator composeOp = compose.build();
+        for (int x : new int[]{-5, 0, 1, 2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertEquals((int) plus2.andThen(times3).apply(x), andThenOp.applyAsInt(x));
+            assertEquals((int) plus2.compose(times3).apply(x), composeOp.applyAsInt(x));
+        }
+
+        //long chain stays flat, opaque steps split the affine runs
+        var chain = OperatorPipeline.ofInt();
+        for (int i = 0; i < 50; i++) {
+            chain = chain.plus(i).times(3);
+        }
+        chain = chain.map(Math::abs);
+        assertEquals(2, chain.stepCount());
+
+        var expected = IntStream.range(0, 1000).map(x -> {
+            for (int i = 0; i < 50; i++) {
+                x = (x + i) * 3;
+            }
+            return Math.abs(x);
+        }).sum();
+        assertEquals(expected, IntStream.range(0, 1000).map(chain.build()).sum());
+
+        var longOp = OperatorPipeline.ofLong().plus(2).times(3).build();
+        assertEquals(3L * (Long.MAX_VALUE + 2), longOp.applyAsLong(Long.MAX_VALUE));
+
+        //double is not reassociated unless asked for
+        var exact = OperatorPipeline.ofDouble().plus(0.1).times(3).build();
+        assertEquals((0.7 + 0.1) * 3, exact.applyAsDouble(0.7));
+        var fused = OperatorPipeline.ofDoubleReassociating().plus(0.1).times(3).build();
+        assertEquals((0.7 + 0.1) * 3, fused.applyAsDouble(0.7), 1e-12);
+
+        //signed zeros come out as the unfused steps leave them
+        for (var pipeline : List.of(OperatorPipeline.ofDouble(), OperatorPipeline.ofDoubleReassociating())) {
+            assertEquals(-0.0 * 1.0, pipeline.times(1.0).build().applyAsDouble(-0.0));
+            assertEquals(-0.0 + 0.0, pipeline.plus(0.0).build().applyAsDouble(-0.0));
+            assertEquals(-0.0 + -0.0, pipeline.plus(-0.0).build().applyAsDouble(-0.0));
+            assertEquals(-0.0 * 2.0, pipeline.times(2.0).build().applyAsDouble(-0.0));
+        }
+        assertEquals((-0.0 + 0.0) * -1.0, OperatorPipeline.ofDouble().plus(0.0).times(-1.0).build().applyAsDouble(-0.0));
+    }
+
     @Test
     void test_lambda_consumers() {
 
@@ -198,6 +299,70 @@ public class Part5Test {
 
     }
 
+    @Test
+    void test_lambda_consumers_broadcast() {
+
+        var read = new AtomicInteger();
+        var source = IntStream.range(0, 10_000).peek(_ -> read.incrementAndGet()).boxed();
+
+        var sum = new long[1];
+        var seenInline = new ArrayList<Integer>();
+        var seenAsync = new ArrayList<Integer>();
+        var slowCount = new AtomicInteger();
+
+        //one pass over the source, four consumers
+        Broadcast.<Integer>create()
+                .to(i -> sum[0] += i)
+                .to(seenInline::add)
+                .toAsync(seenAsync::add)
+                .toAsync(_ -> slowCount.incrementAndGet())
+                .queuedBatches(2)
+                .from(source);
+
+        assertEquals(10_000, read.get());
+        assertEquals(49_995_000L, sum[0]);
+        assertEquals(seenInline, seenAsync);
+        assertEquals(10_000, slowCount.get());
+
+        var keys = new ArrayList<Integer>();
+        var values = new ArrayList<String>();
+        Broadcast.forEach(new TreeMap<>(Map.of(1,"i1",2,"i2")), (k, _) -> keys.add(k), (_, v) -> values.add(v));
+        assertEquals(List.of(1, 2), keys);
+        assertEquals(List.of("i1", "i2"), values);
+
+        var results = IntStream.range(0, 1000).boxed().parallel().collect(Broadcast.teeing(List.of(
+                Collectors.counting(),
+                Collectors.summingInt((Integer i) -> i),
+                Collectors.filtering((Integer i) -> i % 2 == 0, Collectors.toList()))));
+        assertEquals(1000L, results.get(0));
+        assertEquals(499_500, results.get(1));
+        assertEquals(500, ((List<?>) results.get(2)).size());
+
+        //async failure comes back to the caller, the source is still fully drained
+        var failing = assertThrows(IllegalStateException.class, () -> Broadcast.<Integer>create()
+                .toAsync(i -> {
+                    if (i == 5000) {
+                        throw new IllegalStateException("consumer failed at " + i);
+                    }
+                })
+                .from(List.of(1, 5000, 3)));
+        System.out.println("broadcast failure:" + failing.getMessage());
+
+        //an Error in a consumer must not stop the draining: far more batches than the queue holds
+        var seen = new AtomicInteger();
+        var error = assertThrows(AssertionError.class, () -> Broadcast.<Integer>create()
+                .queuedBatches(1)
+                .toAsync(i -> {
+                    if (i == 10) {
+                        throw new AssertionError("consumer broke at " + i);
+                    }
+                })
+                .to(i -> seen.incrementAndGet())
+                .from(IntStream.range(0, 100_000).boxed()));
+        assertEquals("consumer broke at 10", error.getMessage());
+        assertEquals(100_000, seen.get());
+    }
+
     @Test
     void test_method_reference() {
 